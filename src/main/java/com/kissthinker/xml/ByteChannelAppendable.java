@@ -0,0 +1,229 @@
+package com.kissthinker.xml;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An {@link Appendable} that encodes characters as UTF-8 straight into a {@link ByteBuffer}, so that (serialized) XML can go to bytes without an intermediate String.<br/>
+ * When a {@link WritableByteChannel} is given, the buffer is flushed to the channel whenever it is full (and upon {@link #finish()}),
+ * otherwise a full buffer results in a {@link BufferOverflowException}.<br/>
+ * Malformed surrogate pairs are encoded as "?" in line with {@link String#getBytes(java.nio.charset.Charset)}.
+ * @author David Ainslie
+ *
+ */
+final class ByteChannelAppendable implements Appendable
+{
+    /** Replacement for characters that cannot be encoded i.e. unpaired surrogates. */
+    private static final byte REPLACEMENT = '?';
+
+    /** Channel to flush to, which may be null. */
+    private final WritableByteChannel channel;
+
+    /** */
+    private final ByteBuffer buffer;
+
+    /** High surrogate waiting on its low surrogate, otherwise 0. */
+    private char highSurrogate;
+
+    /**
+     *
+     * @param channel to flush the buffer to when full, which may be null to only write into the buffer
+     * @param buffer to encode into, where anything already before the buffer's position is flushed first
+     */
+    ByteChannelAppendable(WritableByteChannel channel, ByteBuffer buffer)
+    {
+        super();
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     *
+     * @see java.lang.Appendable#append(java.lang.CharSequence)
+     */
+    @Override
+    public Appendable append(CharSequence csq) throws IOException
+    {
+        return append(csq, 0, csq.length());
+    }
+
+    /**
+     *
+     * @see java.lang.Appendable#append(java.lang.CharSequence, int, int)
+     */
+    @Override
+    public Appendable append(CharSequence csq, int start, int end) throws IOException
+    {
+        for (int i = start; i < end; i++)
+        {
+            char c = csq.charAt(i);
+
+            if (c < 0x80 && highSurrogate == 0 && buffer.hasRemaining())
+            {
+                // The (vastly) common case of ASCII.
+                buffer.put((byte) c);
+            }
+            else
+            {
+                encode(c);
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     *
+     * @see java.lang.Appendable#append(char)
+     */
+    @Override
+    public Appendable append(char c) throws IOException
+    {
+        encode(c);
+        return this;
+    }
+
+    /**
+     * Write bytes that are already UTF-8 encoded, such as the name of a {@link Symbol}.
+     * @param bytes
+     * @throws IOException
+     */
+    void write(byte[] bytes) throws IOException
+    {
+        completeSurrogate();
+
+        int offset = 0;
+
+        while (offset < bytes.length)
+        {
+            if (!buffer.hasRemaining())
+            {
+                flush();
+            }
+
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Complete the encoding, writing out everything buffered to the channel (if there is a channel).
+     * @throws IOException
+     */
+    void finish() throws IOException
+    {
+        completeSurrogate();
+
+        if (channel != null)
+        {
+            flush();
+        }
+    }
+
+    /**
+     *
+     * @param c
+     * @throws IOException
+     */
+    private void encode(char c) throws IOException
+    {
+        if (highSurrogate != 0)
+        {
+            char high = highSurrogate;
+            highSurrogate = 0;
+
+            if (Character.isLowSurrogate(c))
+            {
+                int codePoint = Character.toCodePoint(high, c);
+                ensure(4);
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                return;
+            }
+
+            ensure(1);
+            buffer.put(REPLACEMENT);
+        }
+
+        if (c < 0x80)
+        {
+            ensure(1);
+            buffer.put((byte) c);
+        }
+        else if (c < 0x800)
+        {
+            ensure(2);
+            buffer.put((byte) (0xC0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+        else if (Character.isHighSurrogate(c))
+        {
+            highSurrogate = c;
+        }
+        else if (Character.isLowSurrogate(c))
+        {
+            ensure(1);
+            buffer.put(REPLACEMENT);
+        }
+        else
+        {
+            ensure(3);
+            buffer.put((byte) (0xE0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+    }
+
+    /**
+     * A high surrogate left hanging cannot be encoded.
+     * @throws IOException
+     */
+    private void completeSurrogate() throws IOException
+    {
+        if (highSurrogate != 0)
+        {
+            highSurrogate = 0;
+            ensure(1);
+            buffer.put(REPLACEMENT);
+        }
+    }
+
+    /**
+     * Ensure there is room in the buffer for the given number of bytes.
+     * @param length
+     * @throws IOException
+     */
+    private void ensure(int length) throws IOException
+    {
+        if (buffer.remaining() < length)
+        {
+            flush();
+        }
+    }
+
+    /**
+     *
+     * @throws IOException
+     */
+    private void flush() throws IOException
+    {
+        if (channel == null)
+        {
+            throw new BufferOverflowException();
+        }
+
+        buffer.flip();
+
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+}
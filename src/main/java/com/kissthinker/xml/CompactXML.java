@@ -0,0 +1,478 @@
+package com.kissthinker.xml;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.kissthinker.xml.XML.Format;
+
+/**
+ * Compact alternative to {@link XML} for large XML - the same fluent API (DSL) but nodes are not objects,
+ * instead each node is an index into parallel int arrays (parent, first child, last child, next sibling, name, text and range of attributes).<br/>
+ * Names are held once per distinct name, and all text and attribute values in a single array,
+ * so a million nodes cost a fraction of the memory of {@link XML} and are walked (written) without any recursion or pointer chasing between objects.
+ * <p/>
+ * As nodes are not objects, the fluent API moves a "current node" e.g.
+ * <pre>
+ * CompactXML.create("order").attribute("id", 2000)
+ *     .node("status", "ACTIVE").nodeEnd()
+ *     .node("locations")
+ *         .node("location").attribute("name", "UK")
+ *         .xmlEnd();
+ * </pre>
+ * where each method returns this same object, and the written XML is exactly that of the equivalent {@link XML}.
+ * <p/>
+ * @author David Ainslie
+ *
+ */
+public final class CompactXML
+{
+    /** Index representing "no node" e.g. the parent of the root. */
+    private static final int NONE = -1;
+
+    /** */
+    private static final char QUOTE = '"';
+
+    /** */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Number of nodes. */
+    private int size;
+
+    /** */
+    private int[] parents = new int[INITIAL_CAPACITY];
+
+    /** */
+    private int[] firstChildren = new int[INITIAL_CAPACITY];
+
+    /** */
+    private int[] lastChildren = new int[INITIAL_CAPACITY];
+
+    /** */
+    private int[] nextSiblings = new int[INITIAL_CAPACITY];
+
+    /** Index into {@link #names} of each node's name. */
+    private int[] nodeNames = new int[INITIAL_CAPACITY];
+
+    /** Index into {@link #values} of each node's text, or {@link #NONE} for no text. */
+    private int[] texts = new int[INITIAL_CAPACITY];
+
+    /** Index of each node's first attribute. */
+    private int[] attributeStarts = new int[INITIAL_CAPACITY];
+
+    /** Number of attributes of each node, which are contiguous from the node's first attribute. */
+    private int[] attributeCounts = new int[INITIAL_CAPACITY];
+
+    /** Number of attributes (including any abandoned when a node's attributes are moved). */
+    private int attributesSize;
+
+    /** Index into {@link #names} of each attribute's name. */
+    private int[] attributeNames = new int[INITIAL_CAPACITY];
+
+    /** Index into {@link #values} of each attribute's value. */
+    private int[] attributeValues = new int[INITIAL_CAPACITY];
+
+    /** Distinct names of nodes and attributes. */
+    private String[] names = new String[INITIAL_CAPACITY];
+
+    /** */
+    private int namesSize;
+
+    /** Index of each distinct name in {@link #names}. */
+    private final Map<String, Integer> nameIndexes = new HashMap<>();
+
+    /** Text and attribute values. */
+    private String[] values = new String[INITIAL_CAPACITY];
+
+    /** */
+    private int valuesSize;
+
+    /** Current node. */
+    private int current;
+
+    /**
+     * Instantiate CompactXML with given name (to represent root node i.e. <root>), where the root is the current node.
+     * @param name
+     * @return CompactXML
+     */
+    public static CompactXML create(String name)
+    {
+        CompactXML compactXML = new CompactXML();
+        compactXML.current = compactXML.add(name, NONE);
+        return compactXML;
+    }
+
+    /**
+     * Create a node with the given name, as a child of the current node.
+     * @param name of the XML node
+     * @return CompactXML this object for a fluent API, where the new node is now the current node
+     */
+    public CompactXML node(String name)
+    {
+        current = add(name, current);
+        return this;
+    }
+
+    /**
+     * Create a node with the given name and include the node text.
+     * @see #node(String)
+     * @param name of the XML node
+     * @param text to include within the node
+     * @return CompactXML this object for a fluent API, where the new node is now the current node
+     */
+    public CompactXML node(String name, String text)
+    {
+        return node(name).text(text);
+    }
+
+    /**
+     * Set text of the current node.
+     * @param text
+     * @return CompactXML this object for fluent API
+     */
+    public CompactXML text(String text)
+    {
+        if (text == null)
+        {
+            texts[current] = NONE;
+        }
+        else if (texts[current] == NONE)
+        {
+            texts[current] = value(text);
+        }
+        else
+        {
+            values[texts[current]] = text;
+        }
+
+        return this;
+    }
+
+    /**
+     * Add an attibute to the current node.<br/>
+     * The given name may include "&" to separate multiple attribute names where each will be set on the current node with the given value.
+     * @param name of the attribute which can be multiple names delimited by "&"
+     * @param value of the attribute - as this is an Object and XML deals with strings, the given value should have an appropriate "toString()"
+     * @return CompactXML this object for a fluent API
+     */
+    public CompactXML attribute(String name, Object value)
+    {
+        String stringValue = value == null ? "" : value.toString();
+
+        if (name.indexOf("&") == -1)
+        {
+            addAttribute(name(name), stringValue);
+        }
+        else
+        {
+            for (String andName : name.split("&"))
+            {
+                addAttribute(name(andName.trim()), stringValue);
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * End the current node i.e close it off so that any new nodes will become a sibling instead of a child.
+     * @return CompactXML this object for a fluent API, where the parent node is now the current node
+     */
+    public CompactXML nodeEnd()
+    {
+        if (parents[current] != NONE)
+        {
+            current = parents[current];
+        }
+
+        return this;
+    }
+
+    /**
+     * End the XML i.e close off the root XML (including the closing off of any unclosed child nodes).
+     * @return CompactXML this object for a fluent API, where the root node is now the current node
+     */
+    public CompactXML xmlEnd()
+    {
+        current = 0;
+        return this;
+    }
+
+    /**
+     *
+     * @return int number of nodes
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     *
+     * @return int number of texts and attribute values held
+     */
+    int valuesSize()
+    {
+        return valuesSize;
+    }
+
+    /**
+     * Write this XML (as a string) in the given {@link Format} directly to the given {@link Appendable}.<br/>
+     * Unlike {@link XML}, the whole XML is always written regardless of the current node.
+     * @param appendable to write to
+     * @param format of the written XML e.g. {@link Format#COMPACT}
+     * @throws IOException if the given appendable fails to be written to
+     */
+    public void writeTo(Appendable appendable, Format format) throws IOException
+    {
+        String newLine = format.newLine();
+        int node = 0;
+        int depth = 0;
+
+        while (node != NONE)
+        {
+            // Start of node
+            appendable.append(format.indentation(depth)).append('<').append(names[nodeNames[node]]);
+
+            for (int i = attributeStarts[node], end = i + attributeCounts[node]; i < end; i++)
+            {
+                appendable.append(' ').append(names[attributeNames[i]]).append('=').append(QUOTE);
+                XML.escape(appendable, values[attributeValues[i]], true);
+                appendable.append(QUOTE);
+            }
+
+            if (firstChildren[node] == NONE && texts[node] == NONE)
+            {
+                appendable.append("/>").append(newLine);
+            }
+            else
+            {
+                appendable.append('>').append(newLine);
+
+                if (texts[node] != NONE && !"".equals(values[texts[node]]))
+                {
+                    appendable.append(format.indentation(depth + 1));
+                    XML.escape(appendable, values[texts[node]], false);
+                    appendable.append(newLine);
+                }
+
+                if (firstChildren[node] != NONE)
+                {
+                    node = firstChildren[node];
+                    depth++;
+                    continue;
+                }
+
+                appendable.append(format.indentation(depth)).append("</").append(names[nodeNames[node]]).append('>').append(newLine);
+            }
+
+            // End of node, so onto its next sibling, or else end each parent (that has no next sibling)
+            while (node != NONE && nextSiblings[node] == NONE)
+            {
+                node = parents[node];
+                depth--;
+
+                if (node != NONE)
+                {
+                    appendable.append(format.indentation(depth)).append("</").append(names[nodeNames[node]]).append('>').append(newLine);
+                }
+            }
+
+            if (node != NONE)
+            {
+                node = nextSiblings[node];
+            }
+        }
+    }
+
+    /**
+     * Write this XML (as a string) directly to the given {@link Appendable}.
+     * @see #writeTo(Appendable, Format)
+     * @param appendable to write to
+     * @throws IOException if the given appendable fails to be written to
+     */
+    public void writeTo(Appendable appendable) throws IOException
+    {
+        writeTo(appendable, Format.PRETTY);
+    }
+
+    /**
+     * This XML as a string in the given {@link Format}.
+     * @param format of the XML string e.g. {@link Format#COMPACT}
+     * @return String
+     */
+    public String toString(Format format)
+    {
+        StringBuilder stringBuilder = new StringBuilder();
+
+        try
+        {
+            writeTo(stringBuilder, format);
+        }
+        catch (IOException e)
+        {
+            // A StringBuilder never throws an IOException
+            throw new IllegalStateException(e);
+        }
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return toString(Format.PRETTY);
+    }
+
+    /**
+     * For internal use only.
+     */
+    private CompactXML()
+    {
+        super();
+    }
+
+    /**
+     * Add a node.
+     * @param name of the node
+     * @param parent of the node, which is {@link #NONE} for the root
+     * @return int the added node
+     */
+    private int add(String name, int parent)
+    {
+        if (size == parents.length)
+        {
+            int capacity = size * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            lastChildren = Arrays.copyOf(lastChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            nodeNames = Arrays.copyOf(nodeNames, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+            attributeStarts = Arrays.copyOf(attributeStarts, capacity);
+            attributeCounts = Arrays.copyOf(attributeCounts, capacity);
+        }
+
+        int node = size++;
+        parents[node] = parent;
+        firstChildren[node] = NONE;
+        lastChildren[node] = NONE;
+        nextSiblings[node] = NONE;
+        nodeNames[node] = name(name);
+        texts[node] = NONE;
+        attributeStarts[node] = attributesSize;
+        attributeCounts[node] = 0;
+
+        if (parent != NONE)
+        {
+            if (firstChildren[parent] == NONE)
+            {
+                firstChildren[parent] = node;
+            }
+            else
+            {
+                nextSiblings[lastChildren[parent]] = node;
+            }
+
+            lastChildren[parent] = node;
+        }
+
+        return node;
+    }
+
+    /**
+     * Add an attribute to the current node, unless the node already has an attribute of the same name, in which case its value is replaced (in the same position), as with {@link XML}.<br/>
+     * A replaced value is overwritten in place (as with {@link #text(String)}), so only a new attribute adds to {@link #values}.
+     * A node's attributes are kept contiguous, so if other attributes have since been added (to other nodes), the current node's attributes are first moved to the end.
+     * @param name index of the attribute's name
+     * @param value of the attribute
+     */
+    private void addAttribute(int name, String value)
+    {
+        int start = attributeStarts[current];
+        int count = attributeCounts[current];
+
+        for (int i = start, end = start + count; i < end; i++)
+        {
+            if (attributeNames[i] == name)
+            {
+                values[attributeValues[i]] = value;
+                return;
+            }
+        }
+
+        if (start + count != attributesSize)
+        {
+            ensureAttributes(count);
+            System.arraycopy(attributeNames, start, attributeNames, attributesSize, count);
+            System.arraycopy(attributeValues, start, attributeValues, attributesSize, count);
+            attributeStarts[current] = attributesSize;
+            attributesSize += count;
+        }
+
+        ensureAttributes(1);
+        attributeNames[attributesSize] = name;
+        attributeValues[attributesSize] = value(value);
+        attributesSize++;
+        attributeCounts[current] = count + 1;
+    }
+
+    /**
+     *
+     * @param count number of attributes about to be added
+     */
+    private void ensureAttributes(int count)
+    {
+        if (attributesSize + count > attributeNames.length)
+        {
+            int capacity = Math.max(attributesSize + count, attributeNames.length * 2);
+            attributeNames = Arrays.copyOf(attributeNames, capacity);
+            attributeValues = Arrays.copyOf(attributeValues, capacity);
+        }
+    }
+
+    /**
+     *
+     * @param name of a node or attribute
+     * @return int index of the given name in {@link #names}, where the name is added if not already present
+     */
+    private int name(String name)
+    {
+        Integer index = nameIndexes.get(name);
+
+        if (index == null)
+        {
+            if (namesSize == names.length)
+            {
+                names = Arrays.copyOf(names, namesSize * 2);
+            }
+
+            index = namesSize;
+            names[namesSize++] = name;
+            nameIndexes.put(name, index);
+        }
+
+        return index;
+    }
+
+    /**
+     *
+     * @param value text or attribute value
+     * @return int index of the added value in {@link #values}
+     */
+    private int value(String value)
+    {
+        if (valuesSize == values.length)
+        {
+            values = Arrays.copyOf(values, valuesSize * 2);
+        }
+
+        values[valuesSize] = value;
+        return valuesSize++;
+    }
+}
@@ -0,0 +1,159 @@
+package com.kissthinker.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An {@link InputStream} of a file read via memory mapping, one window (of at most {@link XML#MAP_SIZE} bytes) at a time,
+ * so the file's bytes are read straight from the page cache (without being copied by the kernel into the heap) and a file of any size (including larger than the heap) can be read.<br/>
+ * A window is only unmapped once garbage collected, so the address space (though not the memory) of a large file may be held until then.
+ * @author David Ainslie
+ *
+ */
+final class MappedInputStream extends InputStream
+{
+    /** */
+    private final FileChannel channel;
+
+    /** Size of the file. */
+    private final long size;
+
+    /** Maximum size of each window. */
+    private final int windowSize;
+
+    /** Position (in the file) of the next window to map. */
+    private long position;
+
+    /** Current window. */
+    private MappedByteBuffer window;
+
+    /**
+     *
+     * @param path of the file to read
+     * @throws IOException if the file cannot be opened
+     */
+    MappedInputStream(Path path) throws IOException
+    {
+        this(path, XML.MAP_SIZE);
+    }
+
+    /**
+     *
+     * @param path of the file to read
+     * @param windowSize maximum number of bytes to map at a time
+     * @throws IOException if the file cannot be opened
+     */
+    MappedInputStream(Path path, int windowSize) throws IOException
+    {
+        super();
+
+        if (windowSize <= 0)
+        {
+            throw new IllegalArgumentException("Size of window to map must be positive");
+        }
+
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Map the whole of the file of the given path, as one buffer.
+     * @param path of the file to read
+     * @return MappedByteBuffer of the file, which remains mapped (after its channel is closed) until garbage collected
+     * @throws IOException if the file cannot be opened or mapped, e.g. if larger than a buffer can be (2 GB)
+     */
+    static MappedByteBuffer map(Path path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            return channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     *
+     * @see java.io.InputStream#read()
+     */
+    @Override
+    public int read() throws IOException
+    {
+        if (!remaining())
+        {
+            return -1;
+        }
+
+        return window.get() & 0xFF;
+    }
+
+    /**
+     *
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException
+    {
+        if (length == 0)
+        {
+            return 0;
+        }
+
+        if (!remaining())
+        {
+            return -1;
+        }
+
+        length = Math.min(length, window.remaining());
+        window.get(bytes, offset, length);
+        return length;
+    }
+
+    /**
+     *
+     * @see java.io.InputStream#available()
+     */
+    @Override
+    public int available()
+    {
+        return window == null ? 0 : window.remaining();
+    }
+
+    /**
+     *
+     * @see java.io.InputStream#close()
+     */
+    @Override
+    public void close() throws IOException
+    {
+        window = null;
+        channel.close();
+    }
+
+    /**
+     * Check for remaining bytes, mapping the next window if the current one has been read.
+     * @return boolean true if there are bytes remaining to be read, false at the end of the file
+     * @throws IOException if the file fails to be mapped
+     */
+    private boolean remaining() throws IOException
+    {
+        if (window != null && window.hasRemaining())
+        {
+            return true;
+        }
+
+        if (position >= size)
+        {
+            return false;
+        }
+
+        long length = Math.min(windowSize, size - position);
+        window = channel.map(MapMode.READ_ONLY, position, length);
+        position += length;
+        return true;
+    }
+}
@@ -0,0 +1,139 @@
+package com.kissthinker.xml;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A name of a node or attribute, held once in a (thread safe) symbol table no matter how many times the name is used.<br/>
+ * As there is only ever one Symbol (and one String) per name, names can be compared by identity, and the UTF-8 bytes of a name (as written) are encoded just once.
+ * <br/>
+ * Symbols are held weakly, so a symbol is removed from the table once nothing uses it i.e. no node, attribute, stream or parser,
+ * as the names of XML (especially of XML from elsewhere) are not necessarily a limited vocabulary.
+ * @author David Ainslie
+ *
+ */
+final class Symbol
+{
+    /** */
+    private static final ConcurrentMap<String, SymbolReference> SYMBOLS = new ConcurrentHashMap<>();
+
+    /** References of the symbols no longer used, whose entries are yet to be removed from {@link #SYMBOLS}. */
+    private static final ReferenceQueue<Symbol> DROPPED = new ReferenceQueue<>();
+
+    /** The (only) instance of this name. */
+    final String name;
+
+    /** This name encoded as UTF-8. */
+    final byte[] bytes;
+
+    /**
+     * Get the one symbol of the given name.
+     * @param name
+     * @return Symbol
+     */
+    static Symbol of(String name)
+    {
+        Symbol symbol = find(name);
+
+        if (symbol != null)
+        {
+            return symbol;
+        }
+
+        removeDropped();
+        symbol = new Symbol(name);
+        SymbolReference symbolReference = new SymbolReference(symbol);
+
+        while (true)
+        {
+            SymbolReference existingReference = SYMBOLS.putIfAbsent(name, symbolReference);
+
+            if (existingReference == null)
+            {
+                return symbol;
+            }
+
+            Symbol existingSymbol = existingReference.get();
+
+            if (existingSymbol != null)
+            {
+                return existingSymbol;
+            }
+
+            if (SYMBOLS.replace(name, existingReference, symbolReference))
+            {
+                return symbol;
+            }
+        }
+    }
+
+    /**
+     * Find the symbol of the given name, without adding it to the symbol table, e.g. when looking up a name that may never have been used.
+     * @param name
+     * @return Symbol or null if there is no symbol of the given name
+     */
+    static Symbol find(String name)
+    {
+        SymbolReference symbolReference = SYMBOLS.get(name);
+        return symbolReference == null ? null : symbolReference.get();
+    }
+
+    /**
+     * Remove the entries of the symbols no longer used, unless already replaced by a new symbol of the same name.
+     */
+    private static void removeDropped()
+    {
+        for (Reference<? extends Symbol> reference = DROPPED.poll(); reference != null; reference = DROPPED.poll())
+        {
+            SymbolReference symbolReference = (SymbolReference) reference;
+            SYMBOLS.remove(symbolReference.name, symbolReference);
+        }
+    }
+
+    /**
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+    /**
+     *
+     * @param name
+     */
+    private Symbol(String name)
+    {
+        super();
+        this.name = name;
+        this.bytes = name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Weak reference of a symbol in the symbol table, which keeps the name of the symbol so that its entry can be removed once the symbol is no longer used.
+     * <br/>
+     * @author David Ainslie
+     *
+     */
+    private static final class SymbolReference extends WeakReference<Symbol>
+    {
+        /** */
+        private final String name;
+
+        /**
+         *
+         * @param symbol
+         */
+        private SymbolReference(Symbol symbol)
+        {
+            super(symbol, DROPPED);
+            this.name = symbol.name;
+        }
+    }
+}
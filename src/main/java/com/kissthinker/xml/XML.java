@@ -2,19 +2,35 @@ package com.kissthinker.xml;
 
 import static java.text.MessageFormat.format;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.io.Writer;
 import java.net.URI;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
 
 import org.slf4j.Logger;
@@ -23,10 +39,10 @@ import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.DefaultHandler;
 
 import com.kissthinker.object.Singleton;
-import com.kissthinker.text.StringUtil;
 
 /**
  * Simple API to work with XML - Essentially a wrapper around an xml string.
@@ -51,41 +67,34 @@ public final class XML
     /** */
     public static final String KEY_SEPARATOR = System.getProperty("xml.key.separator", ".");
 
-    /** */
-    private static final Logger LOGGER = LoggerFactory.getLogger(XML.class);
+    /** Size (in bytes) of buffer to use when writing XML to a channel. */
+    public static final int BUFFER_SIZE = Integer.getInteger("xml.buffer.size", 8192);
+
+    /** Number of children of a node from which its children are written in parallel, when writing with a {@link ForkJoinPool}. */
+    public static final int PARALLEL_THRESHOLD = Integer.getInteger("xml.parallel.threshold", 1000);
+
+    /** Size (in bytes) of each window of a file mapped into memory at a time, when reading XML from a {@link Path}. */
+    public static final int MAP_SIZE = Integer.getInteger("xml.map.size", 64 * 1024 * 1024);
 
-    /** Pattern to parse an XPath string into a regex */
-    private static final Pattern XPATH_PATTERN = Pattern.compile("(\\/+)([^\\/]*)", Pattern.DOTALL);
+    /** Parser of XML that is read (e.g. by {@link #parse(InputStream)} and {@link #toMap(InputStream)}), either "sax" for the JDK's SAX parser,
+        or "pull" for {@link XMLPullParser}, which reads (only) UTF-8 straight from bytes. */
+    public static final String PARSER = System.getProperty("xml.parser", "sax");
 
     /** */
-    private static final Pattern NODE_PATTERN = Pattern.compile("<(.*?)>", Pattern.DOTALL);
+    private static final Logger LOGGER = LoggerFactory.getLogger(XML.class);
 
     /** */
-    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("(\\w*)\\s*=\\s*[\"\']([^\"]+)[\"\']", Pattern.DOTALL);
+    private static final boolean PULL = "pull".equalsIgnoreCase(PARSER);
 
     /** */
     private static final String NEW_LINE = "\n";
 
     /** Size of tab to use when creating XML string (from this {@link XML}).
         Using "spaces" instead of "\t" since "\t" can be different per platform/environment */
-    private static final String TAB = "    ";
+    private static final int TAB = 4;
 
     /** */
-    private static final String QUOTE = "\"";
-
-    /** Current number of tabs to use for current line of XML to be output as a string. */
-    private static final ThreadLocal<String> TABS = new ThreadLocal<String>()
-    {
-        /**
-         *
-         * @see java.lang.ThreadLocal#initialValue()
-         */
-        @Override
-        protected String initialValue()
-        {
-            return "";
-        }
-    };
+    private static final char QUOTE = '"';
 
     /** Convenient ThreadLocal to aid making sure that XML is correctly closed off before any outputting. Currently {@link #toString()} does not use this. */
     private static final ThreadLocal<XML> TO_STRING = new ThreadLocal<>();
@@ -94,17 +103,42 @@ public final class XML
     private final XML parent;
 
     /** Name of this (XML) node. */
-    private final String name;
+    private final Symbol name;
 
-    /** Attributes of this (XML) node. */
-    private final List<Attribute> attributes = new ArrayList<>();
+    /** Attributes of this (XML) node, which is a shared empty list until the first attribute is added (as most nodes have no attributes). */
+    private List<Attribute> attributes = Collections.emptyList();
 
-    /** Child (XML) nodes of this (XML) node. */
-    private final List<XML> children = new ArrayList<>();
+    /** Child (XML) nodes of this (XML) node, which is a shared empty list until the first child is added (as most nodes are leaves). */
+    private List<XML> children = Collections.emptyList();
 
     /** Text to include within this (XML) node. */
     private String text;
 
+    /** Whether the rendering of this node (and its children) is cached, see {@link #cache(boolean)}. */
+    private boolean cache;
+
+    /** Cached rendering of this node, which is null if not cached or changed since last being written. */
+    private Rendering rendering;
+
+    /** Whether this node (or any node below it) has changed since last being written.
+        A changed node always has changed ancestors, so that flagging a change can stop at the first ancestor already flagged. */
+    private boolean changed;
+
+    /** Snapshot of this node as of the last {@link #snapshot()}, which is null if never taken or changed since - a snapshot is its own snapshot.
+        A node with a snapshot always has descendants with snapshots, so that unchanged subtrees are shared by successive snapshots. */
+    private XML snapshot;
+
+    /** Children appended (by any thread) to this node while {@link #concurrent(boolean)}, which is null for (the vast majority of) other nodes. */
+    private Appender appender;
+
+    /** Whether this node, or a node below it, is {@link #concurrent(boolean)} i.e. could have children appended at any time without this node being flagged as changed,
+        so its cached rendering and snapshot are never reused. */
+    private boolean appending;
+
+    /** Bytes of this node (from its start tag to its end tag) whose content is yet to be parsed into its text and children, see {@link #parse(XMLPullParser, int)},
+        which is null for (the vast majority of) other nodes. */
+    private ByteBuffer deferred;
+
     /**
      * Instantiate XML with given name (to represent root node i.e. <root>)
      * @param name
@@ -116,42 +150,147 @@ public final class XML
     }
 
     /**
-     * The given xml string is parsed into {@link XML}.<br/>
-     * TODO Currently no actual parsing, only reading in to allow for xpath lookup.
+     * The given xml string is parsed into {@link XML}.
+     * @see #parse(InputStream)
      * @param xml
-     * @return XML
+     * @return XML root node of the parsed XML, or null if the XML fails to be parsed
      */
     public static XML parse(String xml)
     {
-        return new XML("xml", null).node("xml", xml);
+        try
+        {
+            LOGGER.debug("Parsing of xml string {} into XML", xml);
+            TreeHandler treeHandler = new TreeHandler();
+            read(xml, treeHandler);
+
+            return treeHandler.root;
+        }
+        catch (Exception e)
+        {
+            LOGGER.error(format("Failed to parse xml string {0}", xml), e);
+            return null;
+        }
     }
 
     /**
-     * The given xml input stream is parsed into {@link XML}.<br/>
-     * TODO Currently no actual parsing, only reading in to allow for xpath lookup.
-     * @param xml
-     * @return XML
+     * The given xml input stream is parsed into {@link XML} i.e. a tree of nodes, with their attributes and (trimmed) text, built in a single pass of parsing events (see {@link #PARSER}).
+     * @param xmlInputStream
+     * @return XML root node of the parsed XML, or null if the XML fails to be parsed
      */
     public static XML parse(InputStream xmlInputStream)
     {
-        XML xml = create("xml");
-        
-        try (Scanner scanner = new Scanner(xmlInputStream))
+        try
+        {
+            LOGGER.debug("Parsing of xml from input stream {} into XML", xmlInputStream);
+            TreeHandler treeHandler = new TreeHandler();
+            read(xmlInputStream, treeHandler);
+
+            return treeHandler.root;
+        }
+        catch (Exception e)
+        {
+            LOGGER.error(format("Failed to parse xml from input stream {0}", xmlInputStream), e);
+            return null;
+        }
+    }
+
+    /**
+     * The xml file of the given path is parsed into {@link XML}, reading the file via memory mapping (see {@link #MAP_SIZE}) i.e. without copying it into the heap to then parse it.
+     * @see #parse(InputStream)
+     * @param xmlPath
+     * @return XML root node of the parsed XML, or null if the XML fails to be parsed
+     */
+    public static XML parse(Path xmlPath)
+    {
+        try
         {
-            while (scanner.hasNextLine())
-            {
-                if (xml.text == null)
-                {
-                    xml.text(scanner.nextLine());
-                }
-                else
-                {
-                    xml.text(xml.text + scanner.nextLine());
-                }
-            }
-        }        
+            LOGGER.debug("Parsing of xml from path {} into XML", xmlPath);
+            TreeHandler treeHandler = new TreeHandler();
+            read(xmlPath, treeHandler);
 
-        return xml;
+            return treeHandler.root;
+        }
+        catch (Exception e)
+        {
+            LOGGER.error(format("Failed to parse xml from path {0}", xmlPath), e);
+            return null;
+        }
+    }
+
+    /**
+     * The (rest of the) XML of the given pull parser is parsed into {@link XML}, regardless of {@link #PARSER}.
+     * @see #parse(InputStream)
+     * @param xmlPullParser
+     * @return XML root node of the parsed XML, or null if the XML fails to be parsed
+     */
+    public static XML parse(XMLPullParser xmlPullParser)
+    {
+        try
+        {
+            LOGGER.debug("Parsing of xml from pull parser {} into XML", xmlPullParser);
+            TreeHandler treeHandler = new TreeHandler();
+            xmlPullParser.parse(treeHandler);
+
+            return treeHandler.root;
+        }
+        catch (Exception e)
+        {
+            LOGGER.error(format("Failed to parse xml from pull parser {0}", xmlPullParser), e);
+            return null;
+        }
+    }
+
+    /**
+     * The (rest of the) XML of the given pull parser is parsed lazily into {@link XML}, where the nodes down to the given depth are read with their attributes,
+     * but the content (text and children) of each node at the given depth is deferred i.e. kept as the range of bytes of the node, to be parsed only upon first being navigated
+     * (by {@link #children()}, {@link #text()}, adding a child, or a walk such as writing or converting to a map), e.g. to read the "header" of a large order without parsing all of its locations:
+     * <pre>
+     * XML order = XML.parse(new XMLPullParser(bytes), 1);
+     * order.attribute("id");
+     * order.children().get(0).attribute("name"); // author
+     * </pre>
+     * Skipping over deferred content only scans it for tags (without decoding or allocating anything), so the time to parse is mostly that of the nodes not deferred.
+     * As deferred content is only checked upon being parsed, XML that is not well formed within it results in an {@link IllegalArgumentException} upon navigation, rather than null from this method.
+     * The nodes keep the bytes of the XML (e.g. a mapped file) until all of their deferred content has been parsed.
+     * @param xmlPullParser
+     * @param depth of the nodes whose content is deferred, where the root is 0
+     * @return XML root node of the parsed XML, or null if the XML fails to be parsed
+     */
+    public static XML parse(XMLPullParser xmlPullParser, int depth)
+    {
+        try
+        {
+            LOGGER.debug("Parsing of xml from pull parser {} into XML deferring depth {}", xmlPullParser, depth);
+            TreeHandler treeHandler = new TreeHandler();
+            build(xmlPullParser, treeHandler, depth);
+
+            return treeHandler.root;
+        }
+        catch (Exception e)
+        {
+            LOGGER.error(format("Failed to parse xml from pull parser {0}", xmlPullParser), e);
+            return null;
+        }
+    }
+
+    /**
+     * The xml file of the given path is parsed lazily into {@link XML}, reading the file via memory mapping (as a whole), regardless of {@link #PARSER}.
+     * @see #parse(XMLPullParser, int)
+     * @param xmlPath
+     * @param depth of the nodes whose content is deferred, where the root is 0
+     * @return XML root node of the parsed XML, or null if the XML fails to be read or parsed, e.g. if the file is larger than a buffer can be (2 GB)
+     */
+    public static XML parse(Path xmlPath, int depth)
+    {
+        try
+        {
+            return parse(new XMLPullParser(MappedInputStream.map(xmlPath)), depth);
+        }
+        catch (IOException e)
+        {
+            LOGGER.error(format("Failed to parse xml from path {0}", xmlPath), e);
+            return null;
+        }
     }
 
     /**
@@ -161,14 +300,11 @@ public final class XML
      */
     public static Map<String, String> toMap(URI xmlURI)
     {
-        try
+        try (InputStream xmlInputStream = xmlURI.toURL().openStream())
         {
             LOGGER.debug("Parsing of xml from uri {}", xmlURI);
-            SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
-            SAXParser saxParser = saxParserFactory.newSAXParser();
-
             ValueHandler valueHandler = new ValueHandler();
-            saxParser.parse(xmlURI.toURL().openStream(), valueHandler);
+            read(xmlInputStream, valueHandler);
 
             return valueHandler.map();
         }
@@ -179,6 +315,29 @@ public final class XML
         }
     }
 
+    /**
+     * Create/Convert xml from a file into a Map<String, String>, reading the file via memory mapping (see {@link #MAP_SIZE}),
+     * so that a file of any size (including larger than the heap) is read straight from the page cache as it is parsed.
+     * @param xmlPath location of xml
+     * @return Map<String, String>
+     */
+    public static Map<String, String> toMap(Path xmlPath)
+    {
+        try
+        {
+            LOGGER.debug("Parsing of xml from path {}", xmlPath);
+            ValueHandler valueHandler = new ValueHandler();
+            read(xmlPath, valueHandler);
+
+            return valueHandler.map();
+        }
+        catch (Exception e)
+        {
+            LOGGER.error(format("Failed to parse xml from path {0}", xmlPath), e);
+            return Collections.emptyMap();
+        }
+    }
+
     /**
      * Create/Convert xml String from an {@link InputStream} into a Map<String, String>
      * @param xmlInputStream
@@ -189,11 +348,8 @@ public final class XML
         try
         {
             LOGGER.debug("Parsing of xml from input stream {}", xmlInputStream);
-            SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
-            SAXParser saxParser = saxParserFactory.newSAXParser();
-
             ValueHandler valueHandler = new ValueHandler();
-            saxParser.parse(new InputSource(xmlInputStream), valueHandler);
+            read(xmlInputStream, valueHandler);
 
             return valueHandler.map();
         }
@@ -211,8 +367,41 @@ public final class XML
      */
     public static Map<String, String> toMap(String xml)
     {
-        LOGGER.debug("Parsing of xml string {} (by first converting to an input stream)", xml);
-        return toMap(StringUtil.toInputStream(xml));
+        try
+        {
+            LOGGER.debug("Parsing of xml string {}", xml);
+            ValueHandler valueHandler = new ValueHandler();
+            read(xml, valueHandler);
+
+            return valueHandler.map();
+        }
+        catch (Exception e)
+        {
+            LOGGER.error(format("Failed to parse xml string {0}", xml), e);
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Create/Convert the (rest of the) XML of the given pull parser into a Map<String, String>, regardless of {@link #PARSER}.
+     * @param xmlPullParser
+     * @return Map<String, String>
+     */
+    public static Map<String, String> toMap(XMLPullParser xmlPullParser)
+    {
+        try
+        {
+            LOGGER.debug("Parsing of xml from pull parser {}", xmlPullParser);
+            ValueHandler valueHandler = new ValueHandler();
+            xmlPullParser.parse(valueHandler);
+
+            return valueHandler.map();
+        }
+        catch (Exception e)
+        {
+            LOGGER.error(format("Failed to parse xml from pull parser {0}", xmlPullParser), e);
+            return Collections.emptyMap();
+        }
     }
 
     /**
@@ -222,22 +411,57 @@ public final class XML
      */
     public static Map<String, String> toMap(XML xml)
     {
-        LOGGER.debug("Parsing of XML {} (by first converting to an input stream)", xml);
-        // xml = xml.xmlEnd();
-        return toMap(StringUtil.toInputStream(xml.toString()));
+        try
+        {
+            LOGGER.debug("Walking of XML {} (as if parsing its string)", xml.name);
+            ValueHandler valueHandler = new ValueHandler();
+            new MapWalker(valueHandler).walk(xml);
+
+            return valueHandler.map();
+        }
+        catch (Exception e)
+        {
+            LOGGER.error(format("Failed to walk XML {0}", xml.name), e);
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Create/Convert an {@link XMLIndex} into a Map<String, String>, moving through its tokens and passing the {@link ValueHandler} the events that walking the XML as a tree would (see {@link #toMap(XML)}).
+     * @param xmlIndex
+     * @return Map<String, String>
+     */
+    public static Map<String, String> toMap(XMLIndex xmlIndex)
+    {
+        try
+        {
+            LOGGER.debug("Walking of {}", xmlIndex);
+            ValueHandler valueHandler = new ValueHandler();
+            walk(xmlIndex, valueHandler);
+
+            return valueHandler.map();
+        }
+        catch (Exception e)
+        {
+            LOGGER.error(format("Failed to walk {0}", xmlIndex), e);
+            return Collections.emptyMap();
+        }
     }
 
     /**
      * Create a node with the given name.<br/>
      * This new node will be a sub node to the current node, where the current node will be the parent.<br/>
-     * E.g create <new node> under <current node>
+     * E.g create <new node> under <current node><br/>
+     * Any thread may create a node under a {@link #concurrent(boolean)} node.
      * @param name of the XML node
      * @return XML of newly created node
+     * @throws UnsupportedOperationException if this is a {@link #snapshot()}
      */
     public XML node(String name)
     {
+        mutable();
         XML child = new XML(name, this);
-        children.add(child);
+        append(child);
         return child;
     }
 
@@ -251,9 +475,10 @@ public final class XML
      */
     public XML node(String name, String text)
     {
+        mutable();
         XML child = new XML(name, this);
         child.text = text;
-        children.add(child);
+        append(child);
         return child;
     }
 
@@ -264,7 +489,15 @@ public final class XML
      */
     public XML text(String text)
     {
+        mutable();
+
+        if (deferred != null)
+        {
+            inflate();
+        }
+
         this.text = text;
+        changed();
         return this;
     }
 
@@ -288,16 +521,18 @@ public final class XML
      */
     public XML xmlEnd()
     {
-        if (parent == null)
+        XML xml = this;
+
+        while (xml.parent != null)
         {
-            return this;
+            xml = xml.parent;
         }
 
-        return parent.xmlEnd();
+        return xml;
     }
 
     /**
-     * Add an attibute to the current node.<br/>
+     * Add an attibute to the current node, or replace the value of the current node's attribute of the same name (as a node cannot have duplicate attributes).<br/>
      * The given name may include "&" to separate multiple attribute names where each will be set on the current node with the given value.
      * @param name of the attribute which can be multiple names delimited by "&"
      * @param value of the attribute - as this is an Object and XML deals with strings, the given value should have an appropriate "toString()"
@@ -305,165 +540,426 @@ public final class XML
      */
     public XML attribute(String name, Object value)
     {
+        mutable();
         String valueString = value == null ? "" : value.toString();
 
         if (name.indexOf("&") == -1)
         {
-            attributes.add(new Attribute(name, valueString));
+            add(new Attribute(name, valueString));
         }
         else
         {
             for (String andName : name.split("&"))
             {
-                attributes.add(new Attribute(andName.trim(), valueString));
+                add(new Attribute(andName.trim(), valueString));
             }
         }
 
+        changed();
         return this;
     }
 
     /**
-     * Get text() or "attribute" form XML.<br/>
-     * Internally the given xpath is converted to a regular expression for fast lookup e.g.
-     * <pre>
-     * Given xpath //ServiceStatus/StatusNbr/text() internally is converted to ServiceStatus.*<StatusNbr>(.*)<\\/StatusNbr>
-     * Given xpath //ServiceStatus/@type internally is converted to ServiceStatus.*type.*=.*["'](.*)["']
-     * </pre>
-     * TODO text() should not include children upon capture
-     * @param xpath
-     * @return String which could be "text" or "attribute" that was found, otherwise an empty String
+     * Get the value of the named attribute of the current node.
+     * @param name of the attribute
+     * @return String value of the attribute, or null if the current node has no such attribute
      */
-    public String get(String xpath)
+    public String attribute(String name)
     {
-        StringBuilder xmlRegex = new StringBuilder();
-        String nodeName = null;
+        Symbol symbol = Symbol.find(name);
 
-        Matcher matcher = XPATH_PATTERN.matcher(xpath);
-
-        while (matcher.find())
+        if (symbol == null || attributes.isEmpty())
         {
-            if ("//".equals(matcher.group(1)))
-            {
-                nodeName = matcher.group(2);
-                xmlRegex.append("\\b").append(nodeName).append("\\b");
-            }
-            else if ("/".equals(matcher.group(1)))
-            {
-                if ("text()".equals(matcher.group(2)))
-                {
-                    xmlRegex.append("(.*)").append("<\\/").append(nodeName).append(">");
-                }
-                else if (matcher.group(2).startsWith("@"))
-                {
-                    if (matcher.group(2).length() == 1) // i.e. this group also ends in @
-                    {
-                        // Want to return the entire leaf node and its starting parent node, for extraction of all attributes of leaf node.
-                        xmlRegex.append("(.*?)>");
-                    }
-                    else
-                    {
-                        xmlRegex
-                        .append("(.*?)")
-                        .append("(\\b")
-                        .append(matcher.group(2).substring(1).replaceAll("\\|", "\\\\b\\|\\\\b"))
-                        .append("\\b)").append("\\s*=\\s*[\"\']([^\"]+)[\"\']");
-                    }
-                }
-                else
-                {
-                    nodeName = matcher.group(2);
-                    xmlRegex.append("(.*?)").append("(\\b").append(nodeName).append("\\b)");
-                }
-            }
+            return null;
         }
 
-        LOGGER.debug("Converted xpath: {} to regular expression: {}", xpath, xmlRegex);
+        AttributeList attributeList = (AttributeList) attributes;
+        int index = attributeList.indexOf(symbol);
 
-        Pattern pattern = Pattern.compile(xmlRegex.toString(), Pattern.DOTALL);
-
-        String match = "";
-        matcher = pattern.matcher(text);
+        return index == -1 ? null : attributeList.get(index).value();
+    }
 
-        if (matcher.find())
+    /**
+     * An immutable copy of this node (and all nodes below it) as it is now, which can be read (and written) by any number of threads while this node continues to change.<br/>
+     * Successive snapshots share the snapshots of unchanged nodes, so only nodes changed since the last snapshot (and the nodes above them) are copied,
+     * making a snapshot of a large, mostly unchanged XML cheap to take, e.g. upon each update by the thread building the XML.
+     * <p/>
+     * A snapshot has no parent (as it may be shared by many snapshots) and cannot be changed, as {@link #node(String)}, {@link #text(String)}, {@link #attribute(String, Object)}
+     * and {@link #cache(boolean)} throw {@link UnsupportedOperationException}.
+     * Snapshots must only be taken by the thread changing the XML, and then handed to other threads safely e.g. via a volatile field or a concurrent collection.
+     * @return XML snapshot of this node, which is this node if already a snapshot
+     */
+    public XML snapshot()
+    {
+        if (snapshot == null || appending)
         {
-            if (xmlRegex.toString().endsWith("(.*?)>"))
+            try
             {
-                match = "<" + matcher.group();
+                new Snapshotter().walk(this);
             }
-            else
+            catch (IOException e)
             {
-                for (int i = 0; i < matcher.groupCount() + 1; i++)
-                {
-                    match = matcher.group(i);
-                }
+                // Taking a snapshot never throws an IOException
+                throw new IllegalStateException(e);
             }
         }
 
-        return match;
+        return snapshot;
     }
 
     /**
-     * Get text() or "attribute" form XML.<br/>
-     * Internally the given xpath is converted to a regular expression for fast lookup.<br/>
-     * This method can be thought of as an asynchronous version of {@link #get(String)}
-     * @param xpath
-     * @param attributeCallback
-     * @return boolean true if given xpath was resolved and false otherwise
+     * Getter
+     * @return String name of this node
      */
-    public boolean get(String xpath, AttributeCallback attributeCallback)
+    public String name()
     {
-        String originalXML = text;
+        return name.name;
+    }
 
-        Map<String, String> attributeNameValuePairs = new HashMap<>();
+    /**
+     * Getter
+     * @return String text of this node, or null if there is no text
+     */
+    public String text()
+    {
+        if (deferred != null)
+        {
+            inflate();
+        }
 
-        String nodeAndParent = get(xpath);
+        return text;
+    }
 
-        if ("".equals(nodeAndParent))
+    /**
+     * Getter
+     * @return List<XML> child nodes of this node, which cannot be changed via the list
+     */
+    public List<XML> children()
+    {
+        if (deferred != null)
         {
-            return false;
+            inflate();
         }
 
-        while (!"".equals(nodeAndParent))
+        if (appender != null)
         {
-            Matcher matcher = ATTRIBUTE_PATTERN.matcher(nodeAndParent);
+            merge();
+        }
+
+        return snapshot == this ? children : Collections.unmodifiableList(children);
+    }
+
+    /**
+     * Cache (or stop caching) the rendering of this node i.e. the XML string of this node and its children as last written.<br/>
+     * Useful for large, mostly static XML that is written repeatedly - upon writing, a cached node is spliced in as is,
+     * unless the node (or any of its children) has since changed via {@link #text(String)}, {@link #attribute(String, Object)} or {@link #node(String)},
+     * in which case only the changed path is re-rendered (splicing in any cached siblings).
+     * @param cache true to cache the rendering of this node, false to discard any cached rendering
+     * @return XML this object for a fluent API
+     */
+    public XML cache(boolean cache)
+    {
+        mutable();
+        this.cache = cache;
+        rendering = null;
+        return this;
+    }
+
+    /**
+     * Whether a rendering of this node is held i.e. this node is cached and has been written since it last changed.
+     * @return boolean
+     */
+    boolean rendered()
+    {
+        return rendering != null;
+    }
+
+    /**
+     * Allow any number of threads to append children to this node at the same time, via {@link #node(String)} or {@link #node(String, String)}, without locking.<br/>
+     * E.g. many worker threads each producing records that all belong under one "records" node:
+     * <pre>
+     * XML records = XML.create("batch").node("records").concurrent(true);
+     * // Then from any thread
+     * records.node("record").attribute("id", id).node("name", name);
+     * </pre>
+     * A new child is appended to a lock-free queue rather than to the children of this node, and the queue is merged into the children
+     * when this node is next walked i.e. written, converted to a map, snapshot or asked for its {@link #children()}, which must be done by the thread that owns the XML.<br/>
+     * As a child is appended upon its creation, the owning thread should only walk this node once the producers have finished the children they have appended,
+     * e.g. after joining the producers' tasks, so that each child is complete (and its changes visible) when merged.
+     * <p/>
+     * Unordered, children are merged in the order they reach the queue. Ordered, each child is numbered (by an atomic sequence) upon creation
+     * and children are merged in exactly that order, where a child is held back until every child numbered before it has been merged.
+     * <p/>
+     * This node must be made concurrent before any producer starts. Changes to its children do not flag this node as changed (as they can be made by any thread),
+     * so the cached rendering and snapshot of this node and of every node above it are never reused.
+     * @param ordered true to merge children in order of their creation
+     * @return XML this object for a fluent API
+     * @throws UnsupportedOperationException if this is a {@link #snapshot()}
+     */
+    public XML concurrent(boolean ordered)
+    {
+        mutable();
 
-            while (matcher.find())
+        if (appender == null)
+        {
+            if (deferred != null)
             {
-                attributeNameValuePairs.put(matcher.group(1), matcher.group(2));
+                inflate();
             }
 
-            attributeCallback.got(attributeNameValuePairs);
-
-            matcher = NODE_PATTERN.matcher(nodeAndParent);
-            String lastMatch = "";
+            appender = new Appender(ordered);
 
-            while (matcher.find())
+            for (XML xml = this; xml != null; xml = xml.parent)
             {
-                lastMatch = matcher.group();
+                xml.appending = true;
             }
 
-            text = text.replaceAll(lastMatch, "");
-            nodeAndParent = get(xpath);
+            changed();
         }
 
-        text = originalXML;
-
-        return true;
+        return this;
     }
 
     /**
-     *
-     * @return Map<String, String>
+     * Get text() or "attribute" from this node (and the nodes below it), by walking the nodes i.e. the (unescaped) values themselves rather than their XML string, e.g.
+     * <pre>
+     * Given xpath //ServiceStatus/StatusNbr/text() gives the text of the first StatusNbr node that is a child of a ServiceStatus node
+     * Given xpath //ServiceStatus/@type|TYPE gives the first type (or TYPE) attribute of a ServiceStatus node
+     * </pre>
+     * The xpath is of steps of node names (or *), where the first step (and any step after //) may match at any depth and every other step is a child of the previous step,
+     * optionally ending with text() or an attribute, where alternative names of the attribute are separated by |.
+     * An xpath ending with a step of a node gives the text of the node, and one ending with just @ gives the start tag of the node (as written compactly).<br/>
+     * The same xpath gives the same value from {@link XMLIndex#get(String)} of this XML.
+     * @param xpath
+     * @return String which could be "text" or "attribute" of the first match (in the order written), otherwise an empty String
+     * @throws IllegalArgumentException if the xpath has no step of a node
      */
-    public Map<String, String> toMap()
+    public String get(String xpath)
     {
-        return toMap(this);
+        Finder finder = new Finder(xpath, null);
+        finder.find(this);
+
+        return finder.value == null ? "" : finder.value;
     }
 
     /**
-     * Upon calling, if {@link #xmlEnd()} has yet to be called, the returned string will only be for the current node.<br/>
-     * The commented out code in this implementation would handle automatic closing, but this reduced flexibilty such as logging of added nodes.
-     * @see java.lang.Object#toString()
+     * Get the attributes of each node matching the given xpath (see {@link #get(String)}).<br/>
+     * The callback is given the attributes of each matching node in turn (in the order written), with any attribute named by the xpath not required to be present e.g. "//locations/location/@".<br/>
+     * This method can be thought of as an asynchronous version of {@link #get(String)}
+     * @param xpath
+     * @param attributeCallback
+     * @return boolean true if given xpath was resolved and false otherwise
+     * @throws IllegalArgumentException if the xpath has no step of a node
+     */
+    public boolean get(String xpath, AttributeCallback attributeCallback)
+    {
+        Finder finder = new Finder(xpath, attributeCallback);
+        finder.find(this);
+
+        return finder.resolved;
+    }
+
+    /**
+     *
+     * @return Map<String, String>
+     */
+    public Map<String, String> toMap()
+    {
+        return toMap(this);
+    }
+
+    /**
+     * Write this XML (as a string) directly to the given {@link Appendable} e.g. a {@link StringBuilder} or {@link Writer}.<br/>
+     * The tree is walked once, each node being appended to the given sink as it is visited, so no intermediate strings are built per node.<br/>
+     * Upon calling, if {@link #xmlEnd()} has yet to be called, only the current node (and its children) will be written.
+     * @param appendable to write to
+     * @throws IOException if the given appendable fails to be written to
+     */
+    public void writeTo(Appendable appendable) throws IOException
+    {
+        writeTo(appendable, Format.PRETTY);
+    }
+
+    /**
+     * Write this XML (as a string) in the given {@link Format} directly to the given {@link Appendable}.
+     * @see #writeTo(Appendable)
+     * @param appendable to write to
+     * @param format of the written XML e.g. {@link Format#COMPACT}
+     * @throws IOException if the given appendable fails to be written to
+     */
+    public void writeTo(Appendable appendable, Format format) throws IOException
+    {
+        write(appendable, format);
+    }
+
+    /**
+     * Write this XML (as a string) in the given {@link Format} directly to the given {@link Appendable},
+     * where the children of "wide" nodes (of at least {@link #PARALLEL_THRESHOLD} children) are written in parallel by the given pool.<br/>
+     * Each (sub)set of children is rendered into its own buffer and the buffers are then appended in document order, so the result is the same as writing sequentially.
+     * @see #writeTo(Appendable, Format)
+     * @param appendable to write to
+     * @param format of the written XML e.g. {@link Format#COMPACT}
+     * @param pool to write children in parallel
+     * @throws IOException if the given appendable fails to be written to
+     */
+    public void writeTo(Appendable appendable, Format format, ForkJoinPool pool) throws IOException
+    {
+        new Serializer(appendable, format, pool).walk(this);
+    }
+
+    /**
+     * Write this XML (as a string) directly to the given {@link Writer}, flushing the writer once everything has been written.
+     * @see #writeTo(Appendable)
+     * @param writer to write to
+     * @throws IOException if the given writer fails to be written to
+     */
+    public void writeTo(Writer writer) throws IOException
+    {
+        writeTo(writer, Format.PRETTY);
+    }
+
+    /**
+     * Write this XML (as a string) in the given {@link Format} directly to the given {@link Writer}, flushing the writer once everything has been written.
+     * @see #writeTo(Appendable)
+     * @param writer to write to
+     * @param format of the written XML e.g. {@link Format#COMPACT}
+     * @throws IOException if the given writer fails to be written to
+     */
+    public void writeTo(Writer writer, Format format) throws IOException
+    {
+        write(writer, format);
+        writer.flush();
+    }
+
+    /**
+     * Write this XML encoded as UTF-8 to the given {@link WritableByteChannel} e.g. a socket or {@link java.nio.channels.FileChannel}, using a direct buffer of {@link #BUFFER_SIZE}.
+     * @see #writeTo(WritableByteChannel, ByteBuffer)
+     * @param channel to write to
+     * @throws IOException if the given channel fails to be written to
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException
+    {
+        writeTo(channel, ByteBuffer.allocateDirect(BUFFER_SIZE), Format.PRETTY);
+    }
+
+    /**
+     * Write this XML encoded as UTF-8 straight into the given buffer (which may be direct), flushing the buffer to the given channel whenever it is full.<br/>
+     * The tree is walked once with no intermediate String - upon return everything has been written to the channel and the buffer is cleared.
+     * @param channel to write to
+     * @param buffer to encode into, which must have a capacity of at least 4 bytes
+     * @throws IOException if the given channel fails to be written to
+     */
+    public void writeTo(WritableByteChannel channel, ByteBuffer buffer) throws IOException
+    {
+        writeTo(channel, buffer, Format.PRETTY);
+    }
+
+    /**
+     * Write this XML in the given {@link Format} encoded as UTF-8 straight into the given buffer, flushing the buffer to the given channel whenever it is full.
+     * @see #writeTo(WritableByteChannel, ByteBuffer)
+     * @param channel to write to
+     * @param buffer to encode into, which must have a capacity of at least 4 bytes
+     * @param format of the written XML e.g. {@link Format#COMPACT}
+     * @throws IOException if the given channel fails to be written to
+     */
+    public void writeTo(WritableByteChannel channel, ByteBuffer buffer, Format format) throws IOException
+    {
+        ByteChannelAppendable byteChannelAppendable = new ByteChannelAppendable(channel, buffer);
+        write(byteChannelAppendable, format);
+        byteChannelAppendable.finish();
+    }
+
+    /**
+     * Write this XML encoded as UTF-8 straight into the given buffer (which may be direct), leaving the buffer's position after the last byte written.
+     * @param buffer to encode into
+     * @throws BufferOverflowException if the buffer is too small for this XML
+     */
+    public void writeTo(ByteBuffer buffer)
+    {
+        writeTo(buffer, Format.PRETTY);
+    }
+
+    /**
+     * Write this XML in the given {@link Format} encoded as UTF-8 straight into the given buffer, leaving the buffer's position after the last byte written.
+     * @param buffer to encode into
+     * @param format of the written XML e.g. {@link Format#COMPACT}
+     * @throws BufferOverflowException if the buffer is too small for this XML
+     */
+    public void writeTo(ByteBuffer buffer, Format format)
+    {
+        ByteChannelAppendable byteChannelAppendable = new ByteChannelAppendable(null, buffer);
+
+        try
+        {
+            write(byteChannelAppendable, format);
+            byteChannelAppendable.finish();
+        }
+        catch (IOException e)
+        {
+            // Without a channel there is nothing to throw an IOException
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Exact length (number of chars) of this XML as a string in the given {@link Format}, e.g. to allocate a buffer once before writing.<br/>
+     * The length is summed from the names, attributes and text of every node (or from a node's cached rendering), so this is a walk of the whole XML, though nothing is written or copied
+     * and the XML is left as it was i.e. nodes remain flagged as changed and no rendering is cached. As with any reading of the XML, deferred content of a lazily parsed node
+     * (see {@link #parse(XMLPullParser, int)}) is parsed, and children appended to a {@link #concurrent(boolean)} node so far are merged.
+     * @param format of the XML string e.g. {@link Format#COMPACT}
+     * @return long length of {@link #toString(Format)}
+     */
+    public long length(Format format)
+    {
+        return measure(format).chars;
+    }
+
+    /**
+     * Exact length (number of bytes) of this XML encoded as UTF-8 in the given {@link Format},
+     * e.g. to set a "Content-Length" before writing to a channel without first buffering the whole of the XML.
+     * @see #length(Format)
+     * @param format of the XML e.g. {@link Format#COMPACT}
+     * @return long number of bytes written by {@link #writeTo(WritableByteChannel, ByteBuffer, Format)}
+     */
+    public long utf8Length(Format format)
+    {
+        return measure(format).bytes;
+    }
+
+    /**
+     * This XML as a string in the given {@link Format}.
+     * @see #toString()
+     * @param format of the XML string e.g. {@link Format#COMPACT}
+     * @return String
+     */
+    public String toString(Format format)
+    {
+        Rendering rendering = this.rendering;
+
+        if (rendering != null && !appending && rendering.of(format, 0))
+        {
+            return rendering.xml;
+        }
+
+        StringBuilder stringBuilder = new StringBuilder();
+
+        try
+        {
+            write(stringBuilder, format);
+        }
+        catch (IOException e)
+        {
+            // A StringBuilder never throws an IOException
+            throw new IllegalStateException(e);
+        }
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Upon calling, if {@link #xmlEnd()} has yet to be called, the returned string will only be for the current node.<br/>
+     * The commented out code in this implementation would handle automatic closing, but this reduced flexibilty such as logging of added nodes.
+     * @see java.lang.Object#toString()
      */
     @Override
     public String toString()
@@ -472,136 +968,2112 @@ public final class XML
         FOR automatic "closing" of XML
         if (parent == null)
         {
-            TO_STRING.set(this);
+            TO_STRING.set(this);
+        }
+        else
+        {
+            if (TO_STRING.get() == null)
+            {
+                return xmlEnd().toString();
+            }
+            else
+            {
+                XML root = xmlEnd();
+
+                if (!root.equals(TO_STRING.get()))
+                {
+                    return root.toString();
+                }
+            }
+        }*/
+
+        return toString(Format.PRETTY);
+    }
+
+    /**
+     * Instantiate XML with a given name and set the new node's parent
+     * @param name of new node
+     * @param parent of current node, which will be null if the new node is the root
+     */
+    private XML(String name, XML parent)
+    {
+        this.name = Symbol.of(name);
+        this.parent = parent;
+    }
+
+    /**
+     * Instantiate a snapshot of the given node.
+     * @param xml node to copy
+     * @param children snapshots of the children of the given node
+     */
+    private XML(XML xml, List<XML> children)
+    {
+        this.name = xml.name;
+        this.parent = null;
+        this.text = xml.text;
+        this.attributes = xml.attributes.isEmpty() ? Collections.<Attribute>emptyList() : new AttributeList((AttributeList) xml.attributes);
+        this.children = children;
+        this.snapshot = this;
+    }
+
+    /**
+     * Read the given xml input stream with the {@link #PARSER}, giving each event to the given handler.<br/>
+     * The pull parser reads all of the input stream (into the heap) first.
+     * @param xmlInputStream
+     * @param handler of the events
+     * @throws IOException
+     * @throws SAXException
+     * @throws ParserConfigurationException
+     */
+    private static void read(InputStream xmlInputStream, DefaultHandler handler) throws IOException, SAXException, ParserConfigurationException
+    {
+        if (PULL)
+        {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            byte[] bytes = new byte[BUFFER_SIZE];
+
+            for (int read; (read = xmlInputStream.read(bytes)) != -1;)
+            {
+                byteArrayOutputStream.write(bytes, 0, read);
+            }
+
+            new XMLPullParser(byteArrayOutputStream.toByteArray()).parse(handler);
+        }
+        else
+        {
+            SAXParserFactory.newInstance().newSAXParser().parse(new InputSource(xmlInputStream), handler);
+        }
+    }
+
+    /**
+     * Read the given xml string with the {@link #PARSER}, giving each event to the given handler.
+     * @param xml
+     * @param handler of the events
+     * @throws IOException
+     * @throws SAXException
+     * @throws ParserConfigurationException
+     */
+    private static void read(String xml, DefaultHandler handler) throws IOException, SAXException, ParserConfigurationException
+    {
+        if (PULL)
+        {
+            new XMLPullParser(xml.getBytes(StandardCharsets.UTF_8)).parse(handler);
+        }
+        else
+        {
+            SAXParserFactory.newInstance().newSAXParser().parse(new InputSource(new StringReader(xml)), handler);
+        }
+    }
+
+    /**
+     * Read the xml file of the given path, via memory mapping, with the {@link #PARSER}, giving each event to the given handler.<br/>
+     * The pull parser reads the whole file as one mapped buffer, and so a file beyond the size of a buffer (2 GB) is always read by the SAX parser, via windows of {@link #MAP_SIZE}.
+     * @param xmlPath
+     * @param handler of the events
+     * @throws IOException
+     * @throws SAXException
+     * @throws ParserConfigurationException
+     */
+    private static void read(Path xmlPath, DefaultHandler handler) throws IOException, SAXException, ParserConfigurationException
+    {
+        if (PULL && Files.size(xmlPath) <= Integer.MAX_VALUE)
+        {
+            new XMLPullParser(MappedInputStream.map(xmlPath)).parse(handler);
+        }
+        else
+        {
+            try (MappedInputStream mappedInputStream = new MappedInputStream(xmlPath))
+            {
+                SAXParserFactory.newInstance().newSAXParser().parse(new InputSource(mappedInputStream), handler);
+            }
+        }
+    }
+
+    /**
+     * Build nodes, via the given handler, from the (rest of the) events of the given parser, where the content of each element at the given depth
+     * (the first element being at depth 0) is skipped and deferred in its node (see {@link #parse(XMLPullParser, int)}), unless the given depth is negative.
+     * @param xmlPullParser
+     * @param treeHandler
+     * @param depth of the elements whose content is deferred
+     */
+    private static void build(XMLPullParser xmlPullParser, TreeHandler treeHandler, int depth)
+    {
+        int base = xmlPullParser.depth();
+
+        for (int event = xmlPullParser.next(); event != XMLPullParser.END_DOCUMENT; event = xmlPullParser.next())
+        {
+            switch (event)
+            {
+                case XMLPullParser.START_ELEMENT:
+                    treeHandler.startElement("", "", xmlPullParser.name(), xmlPullParser.attributes());
+
+                    if (xmlPullParser.depth() - base - 1 == depth)
+                    {
+                        int start = xmlPullParser.nameOffset() - 1;
+                        int contentStart = xmlPullParser.position();
+                        xmlPullParser.skip();
+
+                        if (xmlPullParser.position() > contentStart)
+                        {
+                            // Not an empty element i.e. has an end tag
+                            ByteBuffer deferred = xmlPullParser.buffer().duplicate();
+                            deferred.limit(xmlPullParser.position());
+                            deferred.position(start);
+                            treeHandler.node.deferred = deferred;
+                        }
+
+                        treeHandler.endElement("", "", xmlPullParser.name());
+                    }
+
+                    break;
+
+                case XMLPullParser.END_ELEMENT:
+                    treeHandler.endElement("", "", xmlPullParser.name());
+                    break;
+
+                default:
+                    treeHandler.characters.append(xmlPullParser.text());
+            }
+        }
+    }
+
+    /**
+     * Pass the given handler the events of walking the elements of the given index, as {@link MapWalker} does for a tree,
+     * where the end of each element is found by the depth of the next element.
+     * @param xmlIndex
+     * @param valueHandler
+     * @throws SAXException
+     */
+    private static void walk(XMLIndex xmlIndex, ValueHandler valueHandler) throws SAXException
+    {
+        AttributesImpl attributes = new AttributesImpl();
+        int[] elements = new int[32];
+        int depth = 0;
+
+        for (int index = 0, size = xmlIndex.size(); index <= size; index++)
+        {
+            if (index < size && xmlIndex.type(index) != XMLIndex.ELEMENT)
+            {
+                continue;
+            }
+
+            // End the elements that the next element (or the end) is not within
+            for (int end = index < size ? xmlIndex.depth(index) : 0; depth > end; )
+            {
+                valueHandler.endElement("", "", xmlIndex.string(elements[--depth]));
+
+                if (depth > 0)
+                {
+                    valueHandler.value(null);
+                }
+            }
+
+            if (index == size)
+            {
+                break;
+            }
+
+            attributes.clear();
+
+            for (int attribute = index + 1; attribute < size && xmlIndex.type(attribute) == XMLIndex.ATTRIBUTE_NAME; attribute += 2)
+            {
+                attributes.addAttribute("", "", xmlIndex.string(attribute), "CDATA", xmlIndex.string(attribute + 1));
+            }
+
+            valueHandler.startElement("", "", xmlIndex.string(index), attributes);
+
+            if (!xmlIndex.empty(index))
+            {
+                valueHandler.value(xmlIndex.text(index));
+            }
+
+            if (depth == elements.length)
+            {
+                elements = Arrays.copyOf(elements, depth * 2);
+            }
+
+            elements[depth++] = index;
+        }
+    }
+
+    /**
+     * Append this node, and all nodes below it, to the given appendable (walking the nodes without recursion).
+     * @param appendable to write to
+     * @param format of the written XML
+     * @throws IOException if the given appendable fails to be written to
+     */
+    private void write(Appendable appendable, Format format) throws IOException
+    {
+        new Serializer(appendable, format, null).walk(this);
+    }
+
+    /**
+     * Find the slots (matches of the given pattern) within the attribute values and text of this XML, for {@link XMLTemplate},
+     * walking the nodes in the order they are written so that each slot is known to be an attribute value or text (rather than guessed from where it is written).
+     * @param slot pattern of a slot
+     * @return List<Boolean> for each slot (in the order written), true if within an attribute value, false if within text
+     * @throws IllegalArgumentException if a slot is within the name of a node or attribute
+     */
+    List<Boolean> slots(Pattern slot)
+    {
+        SlotFinder slotFinder = new SlotFinder(slot);
+
+        try
+        {
+            slotFinder.walk(this);
+        }
+        catch (IOException e)
+        {
+            // Finding slots writes nothing
+            throw new IllegalStateException(e);
+        }
+
+        return slotFinder.slots;
+    }
+
+    /**
+     * Append the given text or attribute value, escaping the characters that would otherwise break the XML i.e. &, < and > in text, and &, < and " in an attribute value.<br/>
+     * Values are scanned for these characters with runs of (the vast majority of) other characters appended in bulk.
+     * @param appendable to write to
+     * @param value to escape
+     * @param attribute true if the given value is an attribute value, otherwise it is text
+     * @throws IOException if the given appendable fails to be written to
+     */
+    static void escape(Appendable appendable, CharSequence value, boolean attribute) throws IOException
+    {
+        int length = value.length();
+        int start = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            char c = value.charAt(i);
+
+            if (c > '>')
+            {
+                // Every character to escape is at most '>'
+                continue;
+            }
+
+            String entity;
+
+            switch (c)
+            {
+                case '&':
+                    entity = "&amp;";
+                    break;
+
+                case '<':
+                    entity = "&lt;";
+                    break;
+
+                case '>':
+                    entity = attribute ? null : "&gt;";
+                    break;
+
+                case '"':
+                    entity = attribute ? "&quot;" : null;
+                    break;
+
+                default:
+                    entity = null;
+            }
+
+            if (entity != null)
+            {
+                appendable.append(value, start, i).append(entity);
+                start = i + 1;
+            }
+        }
+
+        if (start == 0)
+        {
+            appendable.append(value);
+        }
+        else
+        {
+            appendable.append(value, start, length);
+        }
+    }
+
+    /**
+     * Measure this XML as written in the given format.
+     * @param format
+     * @return Length of this XML
+     */
+    private Length measure(Format format)
+    {
+        Measurer measurer = new Measurer(format);
+
+        try
+        {
+            measurer.walk(this);
+        }
+        catch (IOException e)
+        {
+            // Length never throws an IOException
+            throw new IllegalStateException(e);
+        }
+
+        return measurer.length;
+    }
+
+    /**
+     *
+     * @return boolean true if this node is written as an empty element tag i.e. <name/>
+     */
+    private boolean empty()
+    {
+        return children.isEmpty() && text == null;
+    }
+
+    /**
+     * Add the given child, allocating this node's list of children upon its first child.
+     * @param child
+     */
+    private void add(XML child)
+    {
+        if (children.isEmpty())
+        {
+            children = new ArrayList<>();
+        }
+
+        children.add(child);
+    }
+
+    /**
+     * Append the given (new) child, which is queued to be merged later if this node is {@link #concurrent(boolean)}.
+     * @param child
+     */
+    private void append(XML child)
+    {
+        if (appender == null)
+        {
+            if (deferred != null)
+            {
+                inflate();
+            }
+
+            add(child);
+            changed();
+        }
+        else
+        {
+            appender.append(child);
+        }
+    }
+
+    /**
+     * Merge the children appended to this {@link #concurrent(boolean)} node into its children.
+     */
+    private void merge()
+    {
+        if (appender.mergeInto(this))
+        {
+            changed();
+        }
+    }
+
+    /**
+     * Parse the deferred content of this node (see {@link #parse(XMLPullParser, int)}) into its text and children, in full.<br/>
+     * The content is only no longer deferred once parsed, so content that is not well formed fails upon every navigation (rather than leaving the nodes parsed before the failure).
+     * @throws IllegalArgumentException if the content is not well formed, as deferred content is only checked upon being parsed
+     */
+    private void inflate()
+    {
+        XMLPullParser xmlPullParser = new XMLPullParser(deferred);
+
+        // The start of this node, whose attributes have already been read
+        xmlPullParser.next();
+
+        TreeHandler treeHandler = new TreeHandler();
+        treeHandler.root = this;
+        treeHandler.node = this;
+
+        try
+        {
+            build(xmlPullParser, treeHandler, -1);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // As a deferred node has neither text nor children until its content is parsed
+            children = Collections.emptyList();
+            text = null;
+            throw e;
+        }
+
+        deferred = null;
+    }
+
+    /**
+     * Add (or replace) the given attribute, allocating this node's list of attributes upon its first attribute.
+     * @param attribute
+     */
+    private void add(Attribute attribute)
+    {
+        if (attributes.isEmpty())
+        {
+            attributes = new AttributeList();
+        }
+
+        ((AttributeList) attributes).put(attribute);
+    }
+
+    /**
+     * This node has changed, so any cached rendering (and snapshot) of this node and of every node above it is out of date.<br/>
+     * Nodes above an already changed node (without a snapshot) are also already changed (and so have no cached rendering or snapshot), which keeps this constant time when building XML.
+     */
+    private void changed()
+    {
+        for (XML xml = this; xml != null && !(xml.changed && xml.snapshot == null); xml = xml.parent)
+        {
+            xml.changed = true;
+            xml.rendering = null;
+            xml.snapshot = null;
+
+            if (xml.parent != null && xml.parent.appender != null)
+            {
+                // A concurrent node is not flagged by (and so not shared with) the threads changing its children
+                break;
+            }
+        }
+    }
+
+    /**
+     * Check that this node can be changed.
+     * @throws UnsupportedOperationException if this is a {@link #snapshot()}
+     */
+    private void mutable()
+    {
+        if (snapshot == this)
+        {
+            throw new UnsupportedOperationException(format("XML {0} is a snapshot and so cannot be changed", name));
+        }
+    }
+
+    /**
+     * Callback for when an XPath expression expects to process a list.
+     * <br/>
+     * @author David Ainslie
+     *
+     */
+    public interface AttributeCallback
+    {
+        /**
+         *
+         * @param attributeNameValuePairs
+         */
+        void got(Map<String, String> attributeNameValuePairs);
+    }
+
+    /**
+     * Format of XML written as a string, either "pretty" i.e. indented with a new line per tag/text, or compact i.e. no whitespace at all.
+     * <br/>
+     * Formats are immutable (other than the internal growth of their indentation table) and so can be shared between threads.
+     * @author David Ainslie
+     *
+     */
+    public static final class Format
+    {
+        /** Default format of nodes indented by 4 spaces, each tag and text on its own line. */
+        public static final Format PRETTY = new Format(TAB, NEW_LINE);
+
+        /** Format with no indentation or new lines i.e. minimum size for machine to machine traffic. */
+        public static final Format COMPACT = new Format(0, "");
+
+        /** */
+        private final int indent;
+
+        /** */
+        private final String newLine;
+
+        /** Indentation indexed by depth of node, grown as deeper nodes are written. */
+        private volatile String[] indents = { "" };
+
+        /**
+         * A "pretty" format of nodes indented by the given number of spaces, each tag and text on its own line.
+         * @param indent number of spaces per level of nesting
+         * @return Format
+         */
+        public static Format indent(int indent)
+        {
+            if (indent == TAB)
+            {
+                return PRETTY;
+            }
+
+            if (indent < 0)
+            {
+                throw new IllegalArgumentException(format("Indent of {0} must not be negative", indent));
+            }
+
+            return new Format(indent, NEW_LINE);
+        }
+
+        /**
+         *
+         * @param indent number of spaces per level of nesting
+         * @param newLine to end each tag/text
+         */
+        private Format(int indent, String newLine)
+        {
+            super();
+            this.indent = indent;
+            this.newLine = newLine;
+        }
+
+        /**
+         *
+         * @return String to end each tag/text, which is empty for a compact format
+         */
+        String newLine()
+        {
+            return newLine;
+        }
+
+        /**
+         *
+         * @param depth of a node
+         * @return String indentation for a node at the given depth
+         */
+        String indentation(int depth)
+        {
+            if (indent == 0)
+            {
+                return "";
+            }
+
+            String[] indents = this.indents;
+
+            if (depth >= indents.length)
+            {
+                indents = indents(depth);
+            }
+
+            return indents[depth];
+        }
+
+        /**
+         * Get indentation for the given depth, growing (a copy of) the indentation table when first going deeper.
+         * @param depth
+         * @return String[] indentation table with at least depth + 1 entries
+         */
+        private String[] indents(int depth)
+        {
+            String[] indents = this.indents;
+
+            if (depth >= indents.length)
+            {
+                char[] spaces = new char[indent];
+                Arrays.fill(spaces, ' ');
+                String tab = new String(spaces);
+
+                String[] grown = Arrays.copyOf(indents, Math.max(depth + 1, indents.length * 2));
+
+                for (int i = indents.length; i < grown.length; i++)
+                {
+                    grown[i] = grown[i - 1] + tab;
+                }
+
+                this.indents = grown;
+                indents = grown;
+            }
+
+            return indents;
+        }
+    }
+
+    /**
+     * Walk of the nodes of an XML, depth first in document order, using an explicit stack instead of recursion so that any depth of XML can be walked.
+     * <br/>
+     * @author David Ainslie
+     *
+     */
+    private abstract static class Walker
+    {
+        /** Nodes from the root of the walk down to the current node. */
+        private XML[] nodes = new XML[16];
+
+        /** Index of the next child to walk for each node in {@link #nodes}. */
+        private int[] indexes = new int[16];
+
+        /**
+         * Walk the given XML i.e. the given node and all nodes below it.
+         * @param xml
+         * @throws IOException
+         */
+        final void walk(XML xml) throws IOException
+        {
+            walk(xml, 0);
+        }
+
+        /**
+         * Walk the given XML i.e. the given node and all nodes below it, where the given node is at the given depth.
+         * @param xml
+         * @param depth of the given node
+         * @throws IOException
+         */
+        final void walk(XML xml, int depth) throws IOException
+        {
+            if (xml.deferred != null)
+            {
+                xml.inflate();
+            }
+
+            if (xml.appender != null)
+            {
+                xml.merge();
+            }
+
+            if (!start(xml, depth))
+            {
+                return;
+            }
+
+            nodes[0] = xml;
+            indexes[0] = 0;
+            int top = 0;
+
+            while (top >= 0 && !done())
+            {
+                XML node = nodes[top];
+
+                if (indexes[top] < node.children.size())
+                {
+                    XML child = node.children.get(indexes[top]++);
+
+                    if (child.deferred != null)
+                    {
+                        child.inflate();
+                    }
+
+                    if (child.appender != null)
+                    {
+                        child.merge();
+                    }
+
+                    if (start(child, depth + top + 1))
+                    {
+                        top++;
+
+                        if (top == nodes.length)
+                        {
+                            nodes = Arrays.copyOf(nodes, top * 2);
+                            indexes = Arrays.copyOf(indexes, top * 2);
+                        }
+
+                        nodes[top] = child;
+                        indexes[top] = 0;
+                    }
+                }
+                else
+                {
+                    nodes[top] = null;
+                    end(node, depth + top--);
+                }
+            }
+        }
+
+        /**
+         * Start (visit) the given node.
+         * @param xml node being visited
+         * @param depth of the node, where the node being walked is at depth 0
+         * @return boolean true to walk the children of the node and then {@link #end(XML, int)} the node, false to skip them both
+         * @throws IOException
+         */
+        abstract boolean start(XML xml, int depth) throws IOException;
+
+        /**
+         * End the given node, after all its children have been walked.
+         * @param xml node being visited
+         * @param depth of the node, where the node being walked is at depth 0
+         * @throws IOException
+         */
+        abstract void end(XML xml, int depth) throws IOException;
+
+        /**
+         * Whether the walk is done, so that it stops (without ending the nodes started) rather than walking the rest of the nodes.
+         * @return boolean false by default, to walk all the nodes
+         */
+        boolean done()
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Serialization of an XML i.e. a walk of the XML appending each node as a string.<br/>
+     * Cached nodes are spliced in, unless changed, in which case they are rendered (and cached) first.
+     * <br/>
+     * @author David Ainslie
+     *
+     */
+    private static final class Serializer extends Walker
+    {
+        /** */
+        private final Format format;
+
+        /** */
+        private final String newLine;
+
+        /** Indentation by depth, as looked up (and grown) from the format. */
+        private String[] indents;
+
+        /** Pool to write the children of wide nodes in parallel, which is null to always write sequentially. */
+        private final ForkJoinPool pool;
+
+        /** Current appendable being written to. */
+        private Appendable appendable;
+
+        /** Appendables outside of cached nodes currently being rendered. */
+        private final ArrayDeque<Appendable> appendables = new ArrayDeque<>();
+
+        /**
+         *
+         * @param appendable to write to
+         * @param format of the written XML
+         * @param pool to write the children of wide nodes in parallel, which may be null
+         */
+        private Serializer(Appendable appendable, Format format, ForkJoinPool pool)
+        {
+            super();
+            this.appendable = appendable;
+            this.format = format;
+            this.pool = pool;
+            this.newLine = format.newLine;
+            this.indents = format.indents;
+        }
+
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#start(com.kissthinker.xml.XML, int)
+         */
+        @Override
+        boolean start(XML xml, int depth) throws IOException
+        {
+            if (xml.cache)
+            {
+                Rendering rendering = xml.rendering;
+
+                if (rendering != null && !xml.appending && rendering.of(format, depth))
+                {
+                    appendable.append(rendering.xml);
+                    return false;
+                }
+
+                appendables.push(appendable);
+                appendable = new StringBuilder();
+            }
+
+            appendable.append(indent(depth)).append('<');
+            append(xml.name);
+
+            for (int i = 0, size = xml.attributes.size(); i < size; i++)
+            {
+                Attribute attribute = xml.attributes.get(i);
+                appendable.append(' ');
+                append(attribute.name());
+                appendable.append('=').append(QUOTE);
+                escape(appendable, attribute.value(), true);
+                appendable.append(QUOTE);
+            }
+
+            if (xml.empty())
+            {
+                appendable.append("/>").append(newLine);
+            }
+            else
+            {
+                appendable.append('>').append(newLine);
+
+                if (xml.text != null && !"".equals(xml.text))
+                {
+                    appendable.append(indent(depth + 1));
+                    escape(appendable, xml.text, false);
+                    appendable.append(newLine);
+                }
+
+                if (pool != null && xml.children.size() >= PARALLEL_THRESHOLD)
+                {
+                    writeParallel(xml.children, depth + 1);
+                    end(xml, depth);
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#end(com.kissthinker.xml.XML, int)
+         */
+        @Override
+        void end(XML xml, int depth) throws IOException
+        {
+            if (!xml.empty())
+            {
+                appendable.append(indent(depth)).append("</");
+                append(xml.name);
+                appendable.append('>').append(newLine);
+            }
+
+            if (xml.changed)
+            {
+                // Snapshots (being immutable) are never changed, and so are never written to, as they may be written by many threads at once
+                xml.changed = false;
+            }
+
+            if (xml.cache)
+            {
+                String rendered = appendable.toString();
+                xml.rendering = new Rendering(format, depth, rendered);
+                appendable = appendables.pop();
+                appendable.append(rendered);
+            }
+        }
+
+        /**
+         * Append the given name, as its (already encoded) bytes when writing bytes.
+         * @param symbol of the name
+         * @throws IOException
+         */
+        private void append(Symbol symbol) throws IOException
+        {
+            if (appendable instanceof ByteChannelAppendable)
+            {
+                ((ByteChannelAppendable) appendable).write(symbol.bytes);
+            }
+            else
+            {
+                appendable.append(symbol.name);
+            }
+        }
+
+        /**
+         * Write the given children by splitting them into chunks, each rendered by its own fork/join task, and then appending the chunks in order.
+         * @param children to write
+         * @param depth of the children
+         * @throws IOException
+         */
+        private void writeParallel(List<XML> children, int depth) throws IOException
+        {
+            int size = children.size();
+            int chunks = Math.min(size, pool.getParallelism() * 4);
+            final List<Chunk> tasks = new ArrayList<>(chunks);
+
+            for (int i = 0; i < chunks; i++)
+            {
+                tasks.add(new Chunk(children.subList((int) ((long) size * i / chunks), (int) ((long) size * (i + 1) / chunks)), depth, format, pool));
+            }
+
+            if (ForkJoinTask.inForkJoinPool())
+            {
+                ForkJoinTask.invokeAll(tasks);
+            }
+            else
+            {
+                pool.invoke(new RecursiveAction()
+                {
+                    /**
+                     *
+                     * @see java.util.concurrent.RecursiveAction#compute()
+                     */
+                    @Override
+                    protected void compute()
+                    {
+                        invokeAll(tasks);
+                    }
+                });
+            }
+
+            for (Chunk task : tasks)
+            {
+                appendable.append(task.rendered);
+            }
+        }
+
+        /**
+         *
+         * @param depth of the node being written
+         * @return String indentation for the given depth
+         */
+        private String indent(int depth)
+        {
+            if (format.indent == 0)
+            {
+                return "";
+            }
+
+            if (depth >= indents.length)
+            {
+                indents = format.indents(depth);
+            }
+
+            return indents[depth];
+        }
+    }
+
+    /**
+     * Fork/join task to render a chunk of sibling nodes (and the nodes below them) into their own buffer.
+     * <br/>
+     * @author David Ainslie
+     *
+     */
+    private static final class Chunk extends RecursiveAction
+    {
+        /** */
+        private static final long serialVersionUID = 1L;
+
+        /** */
+        private final List<XML> nodes;
+
+        /** */
+        private final int depth;
+
+        /** */
+        private final Format format;
+
+        /** */
+        private final ForkJoinPool pool;
+
+        /** */
+        private final StringBuilder rendered = new StringBuilder();
+
+        /**
+         *
+         * @param nodes siblings to render
+         * @param depth of the nodes
+         * @param format to render in
+         * @param pool for any wide nodes below the given nodes
+         */
+        private Chunk(List<XML> nodes, int depth, Format format, ForkJoinPool pool)
+        {
+            super();
+            this.nodes = nodes;
+            this.depth = depth;
+            this.format = format;
+            this.pool = pool;
+        }
+
+        /**
+         *
+         * @see java.util.concurrent.RecursiveAction#compute()
+         */
+        @Override
+        protected void compute()
+        {
+            Serializer serializer = new Serializer(rendered, format, pool);
+
+            try
+            {
+                for (int i = 0, size = nodes.size(); i < size; i++)
+                {
+                    serializer.walk(nodes.get(i), depth);
+                }
+            }
+            catch (IOException e)
+            {
+                // A StringBuilder never throws an IOException
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Conversion of an XML into a Map<String, String> by walking the XML and passing the {@link ValueHandler} the events that parsing the XML (as a string) would.
+     * <br/>
+     * @author David Ainslie
+     *
+     */
+    private static final class MapWalker extends Walker
+    {
+        /** */
+        private final ValueHandler valueHandler;
+
+        /** Reused for the attributes of each node. */
+        private final AttributesImpl attributes = new AttributesImpl();
+
+        /**
+         *
+         * @param valueHandler
+         */
+        private MapWalker(ValueHandler valueHandler)
+        {
+            super();
+            this.valueHandler = valueHandler;
+        }
+
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#start(com.kissthinker.xml.XML, int)
+         */
+        @Override
+        boolean start(XML xml, int depth) throws IOException
+        {
+            attributes.clear();
+
+            for (int i = 0, size = xml.attributes.size(); i < size; i++)
+            {
+                Attribute attribute = xml.attributes.get(i);
+                attributes.addAttribute("", "", attribute.name().name, "CDATA", attribute.value());
+            }
+
+            try
+            {
+                valueHandler.startElement("", "", xml.name.name, attributes);
+
+                if (!xml.empty())
+                {
+                    // The (trimmed) text between a start tag and the next tag
+                    valueHandler.value(xml.text);
+                }
+            }
+            catch (SAXException e)
+            {
+                throw new IOException(e);
+            }
+
+            return true;
+        }
+
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#end(com.kissthinker.xml.XML, int)
+         */
+        @Override
+        void end(XML xml, int depth) throws IOException
+        {
+            try
+            {
+                valueHandler.endElement("", "", xml.name.name);
+
+                if (depth > 0)
+                {
+                    // The whitespace between an end tag and the next tag
+                    valueHandler.value(null);
+                }
+            }
+            catch (SAXException e)
+            {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Measuring of an XML i.e. a walk of the XML summing the length of each node as the {@link Serializer} would write it, but without writing (or changing) anything.
+     * <br/>
+     * @author David Ainslie
+     *
+     */
+    private static final class Measurer extends Walker
+    {
+        /** */
+        private final Format format;
+
+        /** */
+        private final int newLine;
+
+        /** */
+        private final Length length = new Length();
+
+        /**
+         *
+         * @param format of the XML being measured
+         */
+        private Measurer(Format format)
+        {
+            super();
+            this.format = format;
+            this.newLine = format.newLine.length();
+        }
+
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#start(com.kissthinker.xml.XML, int)
+         */
+        @Override
+        boolean start(XML xml, int depth) throws IOException
+        {
+            Rendering rendering = xml.rendering;
+
+            if (xml.cache && rendering != null && !xml.appending && rendering.of(format, depth))
+            {
+                length.append(rendering.xml);
+                return false;
+            }
+
+            length.ascii(depth * format.indent + 1);
+            length.name(xml.name);
+
+            for (int i = 0, size = xml.attributes.size(); i < size; i++)
+            {
+                Attribute attribute = xml.attributes.get(i);
+                length.ascii(1);
+                length.name(attribute.name());
+                length.ascii(2);
+                escape(length, attribute.value(), true);
+                length.ascii(1);
+            }
+
+            if (xml.empty())
+            {
+                length.ascii(2 + newLine);
+            }
+            else
+            {
+                length.ascii(1 + newLine);
+
+                if (xml.text != null && !"".equals(xml.text))
+                {
+                    length.ascii((depth + 1) * format.indent);
+                    escape(length, xml.text, false);
+                    length.ascii(newLine);
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#end(com.kissthinker.xml.XML, int)
+         */
+        @Override
+        void end(XML xml, int depth)
+        {
+            if (!xml.empty())
+            {
+                length.ascii(depth * format.indent + 2);
+                length.name(xml.name);
+                length.ascii(1 + newLine);
+            }
+        }
+    }
+
+    /**
+     * An {@link Appendable} that only counts what is appended, as both chars and bytes if encoded as UTF-8 (in line with {@link ByteChannelAppendable}).
+     * <br/>
+     * @author David Ainslie
+     *
+     */
+    private static final class Length implements Appendable
+    {
+        /** */
+        private long chars;
+
+        /** */
+        private long bytes;
+
+        /** Whether the last char appended is a high surrogate waiting on its low surrogate. */
+        private boolean highSurrogate;
+
+        /**
+         * Count the given number of ASCII chars (e.g. of markup or indentation) as appended, without appending each one.
+         * @param count
+         */
+        private void ascii(long count)
+        {
+            chars += count;
+            bytes += count;
+            highSurrogate = false;
+        }
+
+        /**
+         * Count the given name as appended, from its (already encoded) bytes.
+         * @param symbol of the name
+         */
+        private void name(Symbol symbol)
+        {
+            chars += symbol.name.length();
+            bytes += symbol.bytes.length;
+            highSurrogate = false;
+        }
+
+        /**
+         *
+         * @see java.lang.Appendable#append(java.lang.CharSequence)
+         */
+        @Override
+        public Appendable append(CharSequence csq)
+        {
+            return append(csq, 0, csq.length());
+        }
+
+        /**
+         *
+         * @see java.lang.Appendable#append(java.lang.CharSequence, int, int)
+         */
+        @Override
+        public Appendable append(CharSequence csq, int start, int end)
+        {
+            for (int i = start; i < end; i++)
+            {
+                append(csq.charAt(i));
+            }
+
+            return this;
+        }
+
+        /**
+         *
+         * @see java.lang.Appendable#append(char)
+         */
+        @Override
+        public Appendable append(char c)
+        {
+            chars++;
+
+            if (highSurrogate)
+            {
+                highSurrogate = false;
+
+                if (Character.isLowSurrogate(c))
+                {
+                    // The high surrogate was counted as a "?" replacement, whereas the pair is 4 bytes
+                    bytes += 3;
+                    return this;
+                }
+            }
+
+            if (c < 0x80)
+            {
+                bytes++;
+            }
+            else if (c < 0x800)
+            {
+                bytes += 2;
+            }
+            else if (Character.isHighSurrogate(c))
+            {
+                highSurrogate = true;
+                bytes++;
+            }
+            else if (Character.isLowSurrogate(c))
+            {
+                bytes++;
+            }
+            else
+            {
+                bytes += 3;
+            }
+
+            return this;
+        }
+    }
+
+    /**
+     * A cached rendering of a node, being immutable so that it can be (safely) shared by threads writing the same XML.
+     * <br/>
+     * @author David Ainslie
+     *
+     */
+    private static final class Rendering
+    {
+        /** */
+        private final Format format;
+
+        /** */
+        private final int depth;
+
+        /** */
+        private final String xml;
+
+        /**
+         *
+         * @param format the node was written in
+         * @param depth the node was written at, as this determines indentation
+         * @param xml as written
+         */
+        private Rendering(Format format, int depth, String xml)
+        {
+            super();
+            this.format = format;
+            this.depth = depth;
+            this.xml = xml;
+        }
+
+        /**
+         *
+         * @param format
+         * @param depth
+         * @return boolean true if this rendering can be reused to write in the given format at the given depth
+         */
+        private boolean of(Format format, int depth)
+        {
+            return this.format == format && this.depth == depth;
+        }
+    }
+
+    /**
+     *
+     * @author David Ainslie
+     *
+     */
+    private static class Attribute
+    {
+        /** */
+        private final Symbol name;
+
+        /** */
+        private final String value;
+
+        /**
+         *
+         * @param name of attribute
+         * @param value of attibute, which must be a string as XML deals with just text
+         */
+        private Attribute(String name, String value)
+        {
+            super();
+            this.name = Symbol.of(name);
+            this.value = value;
+        }
+
+        /**
+         * Getter
+         * @return Symbol
+         */
+        private Symbol name()
+        {
+            return name;
+        }
+
+        /**
+         * Getter
+         * @return String
+         */
+        private String value()
+        {
+            return value;
+        }
+    }
+
+    /**
+     * Finding of the nodes matching an xpath of {@link XML#get(String)}, by walking the nodes in the order they are written,
+     * where each node is a candidate for those steps of the xpath that its ancestors leave to be matched, so nodes with none are skipped along with all nodes below them.
+     * <br/>
+     * @author David Ainslie
+     *
+     */
+    private static final class Finder extends Walker
+    {
+        /** Name of each step (of a node), or null for a step of any node (*). */
+        private final String[] names;
+
+        /** Symbol of the name of each step, resolved upon finding, which is null for a step of any node or of a name never used (so matching no node). */
+        private final Symbol[] symbols;
+
+        /** Whether each step may match at any depth (below the previous step) i.e. follows //. */
+        private final boolean[] descendants;
+
+        /** Alternative names of the attribute of the last step, empty for just @, otherwise null for text. */
+        private final String[] attributes;
+
+        /** Callback of the attributes of each matching node, otherwise null to find the first value. */
+        private final AttributeCallback attributeCallback;
+
+        /** For each depth of the walk, the steps (as bits) the children of the node at that depth are candidates for. */
+        private long[] steps = new long[16];
+
+        /** */
+        private String value;
+
+        /** */
+        private boolean resolved;
+
+        /**
+         *
+         * @param xpath
+         * @param attributeCallback which may be null
+         * @throws IllegalArgumentException if the xpath has no step of a node, or more steps than can be found
+         */
+        private Finder(String xpath, AttributeCallback attributeCallback)
+        {
+            super();
+            List<String> names = new ArrayList<>();
+            List<Boolean> descendants = new ArrayList<>();
+            String[] attributes = null;
+            int position = 0;
+
+            while (position < xpath.length())
+            {
+                boolean descendant = position == 0 || xpath.startsWith("//", position);
+                position += xpath.startsWith("//", position) ? 2 : xpath.startsWith("/", position) ? 1 : 0;
+                int end = xpath.indexOf('/', position);
+                String step = xpath.substring(position, end == -1 ? xpath.length() : end);
+                position = end == -1 ? xpath.length() : end;
+
+                if (step.startsWith("@"))
+                {
+                    attributes = step.length() == 1 ? new String[0] : step.substring(1).split("\\|");
+
+                    for (int i = 0; i < attributes.length; i++)
+                    {
+                        attributes[i] = attributes[i].trim();
+                    }
+
+                    break;
+                }
+
+                if ("text()".equals(step))
+                {
+                    break;
+                }
+
+                names.add("*".equals(step) ? null : step);
+                descendants.add(descendant);
+            }
+
+            if (names.isEmpty() || names.size() > Long.SIZE)
+            {
+                throw new IllegalArgumentException(format("No element in xpath {0}, or more than {1} elements", xpath, Long.SIZE));
+            }
+
+            this.names = names.toArray(new String[names.size()]);
+            this.symbols = new Symbol[this.names.length];
+            this.descendants = new boolean[descendants.size()];
+
+            for (int i = 0; i < this.descendants.length; i++)
+            {
+                this.descendants[i] = descendants.get(i);
+            }
+
+            this.attributes = attributes;
+            this.attributeCallback = attributeCallback;
+        }
+
+        /**
+         * Find the nodes matching the xpath within the given XML (including the given node itself), until the xpath has its value.
+         * @param xml
+         */
+        private void find(XML xml)
+        {
+            for (int step = 0; step < names.length; step++)
+            {
+                symbols[step] = names[step] == null ? null : Symbol.find(names[step]);
+            }
+
+            try
+            {
+                walk(xml);
+            }
+            catch (IOException e)
+            {
+                // Finding never throws an IOException
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#start(com.kissthinker.xml.XML, int)
+         */
+        @Override
+        boolean start(XML xml, int depth)
+        {
+            long candidates = depth == 0 ? 1L : steps[depth - 1];
+            long children = 0L;
+            int last = names.length - 1;
+
+            for (int step = 0; step <= last && candidates != 0L; step++)
+            {
+                if ((candidates & (1L << step)) == 0)
+                {
+                    continue;
+                }
+
+                if (descendants[step])
+                {
+                    // Still a candidate below this node, whether or not this node matches
+                    children |= 1L << step;
+                }
+
+                if (names[step] != null && xml.name != symbols[step])
+                {
+                    continue;
+                }
+
+                if (step < last)
+                {
+                    children |= 1L << (step + 1);
+                }
+                else if (match(xml))
+                {
+                    return false;
+                }
+            }
+
+            if (children == 0L)
+            {
+                return false;
+            }
+
+            if (depth == steps.length)
+            {
+                steps = Arrays.copyOf(steps, depth * 2);
+            }
+
+            steps[depth] = children;
+            return true;
+        }
+
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#end(com.kissthinker.xml.XML, int)
+         */
+        @Override
+        void end(XML xml, int depth)
+        {
+        }
+
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#done()
+         */
+        @Override
+        boolean done()
+        {
+            return value != null;
+        }
+
+        /**
+         * The given node matches the xpath, which is given to the callback, otherwise its value (if any) is taken.
+         * @param xml
+         * @return boolean true once the xpath has its value
+         */
+        private boolean match(XML xml)
+        {
+            if (attributeCallback != null)
+            {
+                Map<String, String> attributeNameValuePairs = new LinkedHashMap<>();
+
+                for (Attribute attribute : xml.attributes)
+                {
+                    attributeNameValuePairs.put(attribute.name().name, attribute.value());
+                }
+
+                attributeCallback.got(attributeNameValuePairs);
+                resolved = true;
+                return false;
+            }
+
+            if (attributes == null)
+            {
+                value = xml.text == null ? "" : xml.text;
+            }
+            else if (attributes.length == 0)
+            {
+                value = startTag(xml);
+            }
+            else
+            {
+                for (Attribute attribute : xml.attributes)
+                {
+                    if (Arrays.asList(attributes).contains(attribute.name().name))
+                    {
+                        value = attribute.value();
+                        break;
+                    }
+                }
+            }
+
+            return value != null;
+        }
+
+        /**
+         *
+         * @param xml
+         * @return String start tag of the given node as written compactly, i.e. from its &lt; to its &gt;
+         */
+        private static String startTag(XML xml)
+        {
+            StringBuilder stringBuilder = new StringBuilder().append('<').append(xml.name());
+
+            try
+            {
+                for (Attribute attribute : xml.attributes)
+                {
+                    stringBuilder.append(' ').append(attribute.name().name).append('=').append(QUOTE);
+                    escape(stringBuilder, attribute.value(), true);
+                    stringBuilder.append(QUOTE);
+                }
+            }
+            catch (IOException e)
+            {
+                // A StringBuilder never throws an IOException
+                throw new IllegalStateException(e);
+            }
+
+            return stringBuilder.append(xml.empty() ? "/>" : ">").toString();
+        }
+    }
+
+    /**
+     * Finding of the slots of an {@link XMLTemplate}, by walking the nodes in the order they are written i.e. the attribute values, then the text, then the children of each node.
+     * <br/>
+     * @author David Ainslie
+     *
+     */
+    private static final class SlotFinder extends Walker
+    {
+        /** */
+        private final Pattern slot;
+
+        /** For each slot found (in order), true if within an attribute value, false if within text. */
+        private final List<Boolean> slots = new ArrayList<>();
+
+        /**
+         *
+         * @param slot pattern of a slot
+         */
+        private SlotFinder(Pattern slot)
+        {
+            super();
+            this.slot = slot;
+        }
+
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#start(com.kissthinker.xml.XML, int)
+         */
+        @Override
+        boolean start(XML xml, int depth)
+        {
+            check(xml.name.name);
+
+            for (int i = 0, size = xml.attributes.size(); i < size; i++)
+            {
+                Attribute attribute = xml.attributes.get(i);
+                check(attribute.name().name);
+                find(attribute.value(), true);
+            }
+
+            find(xml.text, false);
+            return true;
         }
-        else
+
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#end(com.kissthinker.xml.XML, int)
+         */
+        @Override
+        void end(XML xml, int depth)
         {
-            if (TO_STRING.get() == null)
+        }
+
+        /**
+         *
+         * @param value an attribute value or text, which may be null
+         * @param attribute true if an attribute value
+         */
+        private void find(String value, boolean attribute)
+        {
+            if (value == null)
             {
-                return xmlEnd().toString();
+                return;
             }
-            else
-            {
-                XML root = xmlEnd();
 
-                if (!root.equals(TO_STRING.get()))
-                {
-                    return root.toString();
-                }
+            for (Matcher matcher = slot.matcher(value); matcher.find();)
+            {
+                slots.add(attribute);
             }
-        }*/
-
-        StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append(TABS.get()).append("<").append(name);
+        }
 
-        for (Attribute attribute : attributes)
+        /**
+         *
+         * @param name of a node or attribute
+         * @throws IllegalArgumentException if the given name has a slot
+         */
+        private void check(String name)
         {
-            stringBuilder.append(format(" {0}={1}{2}{1}", attribute.name(), QUOTE, attribute.value()));
+            if (slot.matcher(name).find())
+            {
+                throw new IllegalArgumentException(format("Slot within name {0}, where slots can only be text or attribute values", name));
+            }
         }
+    }
 
-        if (children.isEmpty() && text == null)
+    /**
+     * Taking of a snapshot i.e. a walk of the XML copying each node without a snapshot, after its children, and skipping each node with a snapshot (and so all nodes below it).
+     * @author David Ainslie
+     *
+     */
+    private static final class Snapshotter extends Walker
+    {
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#start(com.kissthinker.xml.XML, int)
+         */
+        @Override
+        boolean start(XML xml, int depth)
         {
-            stringBuilder.append("/>");
+            return xml.snapshot == null || xml.appending;
         }
-        else
+
+        /**
+         *
+         * @see com.kissthinker.xml.XML.Walker#end(com.kissthinker.xml.XML, int)
+         */
+        @Override
+        void end(XML xml, int depth)
         {
-            stringBuilder.append(">");
+            List<XML> children = Collections.emptyList();
+
+            if (!xml.children.isEmpty())
+            {
+                XML[] snapshots = new XML[xml.children.size()];
+
+                for (int i = 0; i < snapshots.length; i++)
+                {
+                    snapshots[i] = xml.children.get(i).snapshot;
+                }
+
+                children = Collections.unmodifiableList(Arrays.asList(snapshots));
+            }
+
+            xml.snapshot = new XML(xml, children);
         }
+    }
 
-        stringBuilder.append(NEW_LINE);
+    /**
+     * Children appended to a {@link XML#concurrent(boolean)} node by any number of threads, via a lock-free queue, until merged by the thread owning the XML.
+     * @author David Ainslie
+     *
+     */
+    private static final class Appender
+    {
+        /** */
+        private final boolean ordered;
+
+        /** Sequence numbering the children, in order of creation, when ordered. */
+        private final AtomicLong sequence = new AtomicLong();
+
+        /** */
+        private final ConcurrentLinkedQueue<Appended> appended = new ConcurrentLinkedQueue<>();
+
+        /** Children (only accessed by the merging thread) held back until the children before them in sequence have been merged, when ordered. */
+        private final PriorityQueue<Appended> pending;
 
-        TABS.set(TABS.get() + TAB);
+        /** Sequence number of the next child to merge, when ordered. */
+        private long next;
 
-        if (text != null && !"".equals(text))
+        /**
+         *
+         * @param ordered true to merge children in order of their creation
+         */
+        private Appender(boolean ordered)
         {
-            stringBuilder.append(TABS.get()).append(text).append(NEW_LINE);
+            super();
+            this.ordered = ordered;
+            this.pending = ordered ? new PriorityQueue<Appended>() : null;
         }
 
-        for (XML child : children)
+        /**
+         * Append the given child, from any thread.
+         * @param child
+         */
+        void append(XML child)
         {
-            stringBuilder.append(child.toString());
+            appended.offer(new Appended(ordered ? sequence.getAndIncrement() : 0, child));
         }
 
-        if (!children.isEmpty() || text != null)
+        /**
+         * Merge the children appended so far (that are not held back) into the given parent.
+         * @param parent of the appended children
+         * @return boolean true if any children were merged
+         */
+        boolean mergeInto(XML parent)
         {
-            TABS.set(TABS.get().replaceFirst(TAB, ""));
-            stringBuilder.append(TABS.get()).append(format("</{0}>", name)).append(NEW_LINE);
+            boolean merged = false;
+            Appended child;
+
+            while ((child = appended.poll()) != null)
+            {
+                if (!ordered)
+                {
+                    parent.add(child.xml);
+                    merged = true;
+                }
+                else if (child.sequence == next)
+                {
+                    // Children (almost always) reach the queue in sequence, so are only held back when another child is still on its way
+                    parent.add(child.xml);
+                    next++;
+                    merged = true;
+                    mergePending(parent);
+                }
+                else
+                {
+                    pending.offer(child);
+                }
+            }
+
+            return merged;
         }
-        else
+
+        /**
+         * Merge the children held back that are now next in sequence.
+         * @param parent of the appended children
+         */
+        private void mergePending(XML parent)
         {
-            TABS.set(TABS.get().replaceFirst(TAB, ""));
+            while (!pending.isEmpty() && pending.peek().sequence == next)
+            {
+                parent.add(pending.poll().xml);
+                next++;
+            }
         }
-
-        return stringBuilder.toString();
     }
 
     /**
-     * Instantiate XML with a given name and set the new node's parent
-     * @param name of new node
-     * @param parent of current node, which will be null if the new node is the root
+     * A child appended to a {@link XML#concurrent(boolean)} node, with its number in sequence.
+     * @author David Ainslie
+     *
      */
-    private XML(String name, XML parent)
+    private static final class Appended implements Comparable<Appended>
     {
-        this.name = name;
-        this.parent = parent;
+        /** */
+        private final long sequence;
+
+        /** */
+        private final XML xml;
+
+        /**
+         *
+         * @param sequence
+         * @param xml
+         */
+        private Appended(long sequence, XML xml)
+        {
+            super();
+            this.sequence = sequence;
+            this.xml = xml;
+        }
+
+        /**
+         *
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        @Override
+        public int compareTo(Appended appended)
+        {
+            return Long.compare(sequence, appended.sequence);
+        }
     }
 
     /**
-     * Callback for when an XPath expression expects to process a list.
-     * <br/>
+     * Attributes of a node, where an attribute is found by (the identity of) its name.<br/>
+     * Most nodes have a few attributes, which are simply scanned, but beyond {@link #INDEX_THRESHOLD} attributes an open addressing (linear probing) index is kept,
+     * mapping (the hash of) each name to its attribute's position, so finding (and so replacing) an attribute remains constant time regardless of the number of attributes.
      * @author David Ainslie
      *
      */
-    public interface AttributeCallback
+    private static final class AttributeList extends ArrayList<Attribute>
     {
+        /** */
+        private static final long serialVersionUID = 1L;
+
+        /** Number of attributes above which they are indexed. */
+        private static final int INDEX_THRESHOLD = 8;
+
+        /** Position + 1 of each attribute, by hash of name, where 0 is an empty slot - null until there are more than {@link #INDEX_THRESHOLD} attributes. */
+        private int[] index;
+
         /**
          *
-         * @param attributeNameValuePairs
          */
-        void got(Map<String, String> attributeNameValuePairs);
+        private AttributeList()
+        {
+            super(2);
+        }
+
+        /**
+         * A copy of the given attributes.
+         * @param attributeList
+         */
+        private AttributeList(AttributeList attributeList)
+        {
+            super(attributeList);
+            index = attributeList.index == null ? null : attributeList.index.clone();
+        }
+
+        /**
+         *
+         * @param name of an attribute
+         * @return int position of the named attribute, or -1 if there is no such attribute
+         */
+        private int indexOf(Symbol name)
+        {
+            if (index == null)
+            {
+                for (int i = 0, size = size(); i < size; i++)
+                {
+                    if (get(i).name() == name)
+                    {
+                        return i;
+                    }
+                }
+
+                return -1;
+            }
+
+            int mask = index.length - 1;
+
+            for (int slot = hash(name) & mask; index[slot] != 0; slot = (slot + 1) & mask)
+            {
+                if (get(index[slot] - 1).name() == name)
+                {
+                    return index[slot] - 1;
+                }
+            }
+
+            return -1;
+        }
+
+        /**
+         * Add the given attribute, unless there is already an attribute of the same name, in which case it is replaced (in the same position).
+         * @param attribute
+         */
+        private void put(Attribute attribute)
+        {
+            int position = indexOf(attribute.name());
+
+            if (position != -1)
+            {
+                set(position, attribute);
+                return;
+            }
+
+            add(attribute);
+
+            if (index != null && size() * 2 <= index.length)
+            {
+                insert(size() - 1);
+            }
+            else if (size() > INDEX_THRESHOLD)
+            {
+                // Keep the index at most half full, so that probes are short
+                index = new int[Integer.highestOneBit(size() * 4)];
+
+                for (int i = 0, size = size(); i < size; i++)
+                {
+                    insert(i);
+                }
+            }
+        }
+
+        /**
+         * Index the attribute at the given position.
+         * @param position
+         */
+        private void insert(int position)
+        {
+            int mask = index.length - 1;
+            int slot = hash(get(position).name()) & mask;
+
+            while (index[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+
+            index[slot] = position + 1;
+        }
+
+        /**
+         *
+         * @param name
+         * @return int hash of the given name, spread so that its low bits (the index slot) depend on all of its bits
+         */
+        private static int hash(Symbol name)
+        {
+            int hash = name.name.hashCode();
+            return hash ^ (hash >>> 16);
+        }
     }
 
     /**
-     *
+     * Building of {@link XML} from SAX events, where each element is a node, with its attributes, and the (trimmed) characters within it are its text.
      * @author David Ainslie
      *
      */
-    private static class Attribute
+    private static final class TreeHandler extends DefaultHandler
     {
         /** */
-        private final String name;
+        private XML root;
 
-        /** */
-        private final String value;
+        /** Node of the element currently being read, whose parent is the node of the enclosing element. */
+        private XML node;
+
+        /** Characters read since the last start/end of an element, as a parser may deliver text in many chunks. */
+        private final StringBuilder characters = new StringBuilder();
 
         /**
          *
-         * @param name of attribute
-         * @param value of attibute, which must be a string as XML deals with just text
+         * @see org.xml.sax.helpers.DefaultHandler#startElement(java.lang.String, java.lang.String, java.lang.String, org.xml.sax.Attributes)
          */
-        private Attribute(String name, String value)
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
         {
-            super();
-            this.name = name;
-            this.value = value;
+            read();
+
+            XML child = new XML(qName, node);
+
+            if (node == null)
+            {
+                root = child;
+            }
+            else
+            {
+                node.add(child);
+            }
+
+            for (int i = 0, length = attributes.getLength(); i < length; i++)
+            {
+                child.add(new Attribute(attributes.getQName(i), attributes.getValue(i)));
+            }
+
+            node = child;
         }
 
         /**
-         * Getter
-         * @return String
+         *
+         * @see org.xml.sax.helpers.DefaultHandler#endElement(java.lang.String, java.lang.String, java.lang.String)
          */
-        private String name()
+        @Override
+        public void endElement(String uri, String localName, String qName)
         {
-            return name;
+            read();
+            node = node.parent;
         }
 
         /**
-         * Getter
-         * @return String
+         *
+         * @see org.xml.sax.helpers.DefaultHandler#characters(char[], int, int)
          */
-        private String value()
+        @Override
+        public void characters(char[] ch, int start, int length)
         {
-            return value;
+            characters.append(ch, start, length);
+        }
+
+        /**
+         * Complete the reading of any characters (since the last start/end of an element) into the text of the current node, ignoring whitespace (between elements).
+         */
+        private void read()
+        {
+            if (characters.length() == 0)
+            {
+                return;
+            }
+
+            String text = characters.toString().trim();
+            characters.setLength(0);
+
+            if (!text.isEmpty())
+            {
+                node.text = node.text == null ? text : node.text + text;
+            }
         }
     }
 
@@ -629,6 +3101,12 @@ public final class XML
         /** */
         private boolean nodeRead = false;
 
+        /** Characters read since the last start/end of an element, as a parser may deliver text in many chunks (e.g. split at entities or new lines). */
+        private final StringBuilder characters = new StringBuilder();
+
+        /** */
+        private boolean charactersRead = false;
+
         /**
          * Called when an element is being read.<br/>
          * This method will store the key of element in {@link #key}. This key will be used in map.<br/>
@@ -638,6 +3116,8 @@ public final class XML
         @Override
         public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException
         {
+            read();
+
             if (nodeRead && !"".equals(value))
             {
                 map().put(key, value);
@@ -672,21 +3152,42 @@ public final class XML
 
         /**
          * Called when the value of element is being read.<br/>
-         * This method will store the value of element in {@link #value}. Both key and value will be stored in map.
+         * This method will gather the value of element, to be stored in {@link #value} upon the next start/end of an element. Both key and value will be stored in map.
          * @see org.xml.sax.helpers.DefaultHandler#characters(char[], int, int)
          */
         @Override
         public void characters(char[] ch, int start, int length) throws SAXException
         {
-            value = "";
+            characters.append(ch, start, length);
+            charactersRead = true;
+        }
 
-            for (int i = start; i < (start + length); i++)
+        /**
+         * Equivalent of {@link #characters(char[], int, int)} for a value that has already been read.
+         * @param value which may be null to represent only whitespace having been read
+         */
+        private void value(String value)
+        {
+            if (value != null)
             {
-                value = value + Character.toString(ch[i]);
+                characters.append(value);
             }
 
-            value = value.trim();
-            nodeRead = true;
+            charactersRead = true;
+        }
+
+        /**
+         * Complete the reading of any characters (since the last start/end of an element) into {@link #value}.
+         */
+        private void read()
+        {
+            if (charactersRead)
+            {
+                value = characters.toString().trim();
+                characters.setLength(0);
+                charactersRead = false;
+                nodeRead = true;
+            }
         }
 
         /**
@@ -696,6 +3197,8 @@ public final class XML
         @Override
         public void endElement(String uri, String localName, String qName) throws SAXException
         {
+            read();
+
             if (nodeRead)
             {
                 map().put(key, value);
@@ -0,0 +1,22 @@
+package com.kissthinker.xml;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field, of a class marked by {@link XMLElement}, to be written as an attribute of the class's node.<br/>
+ * The field's value is written by its "toString()", and a null value is not written at all.
+ * @author David Ainslie
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface XMLAttribute
+{
+    /** Name of the attribute, where the default is the name of the field. */
+    String name() default "";
+}
@@ -0,0 +1,36 @@
+package com.kissthinker.xml;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class as XML, for which {@link XMLProcessor} generates an {@link XMLMarshaller} upon compilation, and marks the fields of the class to be written as nodes.<br/>
+ * A field that is itself of a class marked as XML is written as a node with children, and a {@link java.util.List} field is written as one node per item, e.g.
+ * <pre>
+ * &#64;XMLElement(name = "order")
+ * public class Order
+ * {
+ *     &#64;XMLAttribute
+ *     int id;
+ *
+ *     &#64;XMLElement
+ *     String status;
+ *
+ *     &#64;XMLElement(name = "location")
+ *     List&lt;Location&gt; locations;
+ * }
+ * </pre>
+ * @author David Ainslie
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target({ ElementType.TYPE, ElementType.FIELD })
+public @interface XMLElement
+{
+    /** Name of the node, where the default is the name of the field, or the name of the class starting with lower case. */
+    String name() default "";
+}
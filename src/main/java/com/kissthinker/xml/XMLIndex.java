@@ -0,0 +1,743 @@
+package com.kissthinker.xml;
+
+import static java.text.MessageFormat.format;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kissthinker.xml.XML.AttributeCallback;
+
+/**
+ * An index over XML encoded as UTF-8 (or ASCII), in the style of VTD (virtual token descriptors), for read mostly lookups of large XML:
+ * rather than a tree of objects (as {@link XML#parse(Path)}), the original bytes are kept as they are (e.g. a mapped file) along with a single long[] of tokens,
+ * where each token is just the type, depth, offset and length of a name, attribute value or text within the bytes.<br/>
+ * At 8 bytes a token, the index of typical (indented) XML is roughly a quarter of the size of the XML, and is built in a single pass of an {@link XMLPullParser}, e.g.
+ * <pre>
+ * XMLIndex index = XMLIndex.parse(Paths.get("orders.xml"));
+ * String author = index.get("//author/@name");
+ * </pre>
+ * The index supports the same lookups as {@link XML}, i.e. {@link #get(String)}, {@link #get(String, AttributeCallback)} and {@link #toMap()},
+ * where an xpath is resolved by moving through the tokens (comparing names by their bytes) and only the String that is found is decoded.<br/>
+ * Whitespace (only) between tags, comments and processing instructions are not indexed, and the XML is checked (while indexing) only as far as the pull parser checks it.
+ * <p/>
+ * The tokens of an index never change, though (as with a pull parser) decoding reuses a buffer, so one instance should not be used by more than one thread at a time.
+ * @author David Ainslie
+ *
+ */
+public final class XMLIndex
+{
+    /** Type of token of the name of an element, which is followed by the tokens of its attributes, then of its text and children. */
+    public static final int ELEMENT = 0;
+
+    /** Type of token of the name of an attribute, which is followed by the token of its value. */
+    public static final int ATTRIBUTE_NAME = 1;
+
+    /** Type of token of the value of an attribute. */
+    public static final int ATTRIBUTE_VALUE = 2;
+
+    /** Type of token of text within an element, other than only whitespace between tags (e.g. indentation). */
+    public static final int TEXT = 3;
+
+    /** Type of token of (the content of) a CDATA section within an element. */
+    public static final int CDATA = 4;
+
+    /** Maximum depth of an element (where the root is 0), as a token holds depth in 12 bits. */
+    public static final int MAX_DEPTH = 0xFFF;
+
+    /** Length held by a token whose bytes are (at least) this long, where the actual length is then found by reading the bytes. */
+    private static final int MAX_LENGTH = 0xFFFF;
+
+    /** */
+    private static final Logger LOGGER = LoggerFactory.getLogger(XMLIndex.class);
+
+    /** Parser that built this index, kept to decode tokens (and names) on demand. */
+    private final XMLPullParser parser;
+
+    /** */
+    private final ByteBuffer buffer;
+
+    /** Tokens, each being (from the highest bits) type (4 bits), depth (12 bits), length (16 bits) and offset (32 bits). */
+    private final long[] tokens;
+
+    /**
+     * Index the given XML.
+     * @see #parse(ByteBuffer)
+     * @param xml bytes of XML
+     * @return XMLIndex or null if the XML fails to be parsed
+     */
+    public static XMLIndex parse(byte[] xml)
+    {
+        return parse(ByteBuffer.wrap(xml));
+    }
+
+    /**
+     * Index the given XML, which is kept (not copied) by the index, and so must not be changed.
+     * @param xml buffer of XML from its position to its limit
+     * @return XMLIndex or null if the XML fails to be parsed
+     */
+    public static XMLIndex parse(ByteBuffer xml)
+    {
+        try
+        {
+            LOGGER.debug("Indexing of xml from buffer {}", xml);
+            return new XMLIndex(new XMLPullParser(xml));
+        }
+        catch (IllegalArgumentException e)
+        {
+            LOGGER.error(format("Failed to index xml from buffer {0}", xml), e);
+            return null;
+        }
+    }
+
+    /**
+     * Index the xml file of the given path, which is memory mapped (as a whole) so that only the tokens are held in the heap.
+     * @param xmlPath
+     * @return XMLIndex or null if the XML fails to be read or parsed, e.g. if the file is larger than a buffer can be (2 GB)
+     */
+    public static XMLIndex parse(Path xmlPath)
+    {
+        try
+        {
+            LOGGER.debug("Indexing of xml from path {}", xmlPath);
+            return new XMLIndex(new XMLPullParser(MappedInputStream.map(xmlPath)));
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            LOGGER.error(format("Failed to index xml from path {0}", xmlPath), e);
+            return null;
+        }
+    }
+
+    /**
+     * Get text() or "attribute" from the XML, as {@link XML#get(String)}, though resolved by moving through the tokens i.e. without a tree of nodes.<br/>
+     * The xpath is of steps of element names (or *), where the first step (and any step after //) may match at any depth and every other step is a child of the previous step,
+     * optionally ending with text() or an attribute, where alternative names of the attribute are separated by | e.g.
+     * <pre>
+     * //book/author/@name|NAME
+     * //order//location/text()
+     * </pre>
+     * An xpath ending with a step of an element gives the text of the element, and one ending with just @ gives the start tag of the element (as written).
+     * @param xpath
+     * @return String which could be "text" or "attribute" of the first match (in document order), otherwise an empty String
+     */
+    public String get(String xpath)
+    {
+        XPath path = new XPath(xpath, null);
+        find(path);
+
+        return path.value == null ? "" : path.value;
+    }
+
+    /**
+     * Get the attributes of each element matching the given xpath (see {@link #get(String)}), as {@link XML#get(String, AttributeCallback)}.<br/>
+     * The callback is given the attributes of each matching element in turn (in document order), with any attribute named by the xpath not required to be present e.g. "//locations/location/@".
+     * @param xpath
+     * @param attributeCallback
+     * @return boolean true if given xpath was resolved and false otherwise
+     */
+    public boolean get(String xpath, AttributeCallback attributeCallback)
+    {
+        XPath path = new XPath(xpath, attributeCallback);
+        find(path);
+
+        return path.resolved;
+    }
+
+    /**
+     * Convert the XML into a Map<String, String>, as {@link XML#toMap(XML)} of the XML parsed into a tree.
+     * @return Map<String, String>
+     */
+    public Map<String, String> toMap()
+    {
+        return XML.toMap(this);
+    }
+
+    /**
+     *
+     * @return int number of tokens
+     */
+    public int size()
+    {
+        return tokens.length;
+    }
+
+    /**
+     *
+     * @param index of a token
+     * @return int type of the token i.e. {@link #ELEMENT}, {@link #ATTRIBUTE_NAME}, {@link #ATTRIBUTE_VALUE}, {@link #TEXT} or {@link #CDATA}
+     */
+    public int type(int index)
+    {
+        return (int) (tokens[index] >>> 60);
+    }
+
+    /**
+     *
+     * @param index of a token
+     * @return int depth of the element of the token (of the element itself, or of the element that an attribute or text belongs to), where the root is 0
+     */
+    public int depth(int index)
+    {
+        return (int) (tokens[index] >>> 48) & MAX_DEPTH;
+    }
+
+    /**
+     *
+     * @param index of a token
+     * @return int offset (within the bytes) of the token
+     */
+    public int offset(int index)
+    {
+        return (int) tokens[index];
+    }
+
+    /**
+     *
+     * @param index of a token
+     * @return int length (in bytes) of the token
+     */
+    public int length(int index)
+    {
+        int length = (int) (tokens[index] >>> 32) & MAX_LENGTH;
+        return length == MAX_LENGTH ? scan(index) : length;
+    }
+
+    /**
+     *
+     * @param index of a token
+     * @return String of the token (decoded) i.e. a name, attribute value or text (untrimmed)
+     */
+    public String string(int index)
+    {
+        switch (type(index))
+        {
+            case ELEMENT:
+            case ATTRIBUTE_NAME:
+                return parser.symbol(offset(index), length(index)).name;
+
+            case ATTRIBUTE_VALUE:
+                return parser.string(offset(index), length(index), true, true);
+
+            case TEXT:
+                return parser.string(offset(index), length(index), true, false);
+
+            default:
+                return parser.string(offset(index), length(index), false, false);
+        }
+    }
+
+    /**
+     * The text of an element as {@link XML#text()} of the element parsed into a tree i.e. trimmed, where text either side of a child is trimmed (and joined) separately.
+     * @param element index of the token of an element
+     * @return String text of the element, or null if there is no text
+     */
+    public String text(int element)
+    {
+        int depth = depth(element);
+        int end = end(element);
+        StringBuilder text = null;
+        StringBuilder characters = null;
+
+        for (int index = element + 1; index < end; index++)
+        {
+            int type = type(index);
+
+            if ((type == TEXT || type == CDATA) && depth(index) == depth)
+            {
+                if (characters == null)
+                {
+                    characters = new StringBuilder();
+                }
+
+                characters.append(string(index));
+            }
+            else if (type == ELEMENT && characters != null)
+            {
+                text = append(text, characters);
+                characters = null;
+            }
+        }
+
+        if (characters != null)
+        {
+            text = append(text, characters);
+        }
+
+        return text == null ? null : text.toString();
+    }
+
+    /**
+     *
+     * @param element index of the token of an element
+     * @return boolean true if the element has neither text (see {@link #text(int)}) nor children
+     */
+    public boolean empty(int element)
+    {
+        for (int index = element + 1, end = end(element); index < end; index++)
+        {
+            if (type(index) == ELEMENT)
+            {
+                return false;
+            }
+        }
+
+        return text(element) == null;
+    }
+
+    /**
+     *
+     * @param element index of the token of an element
+     * @return int index of the token after the element i.e. after all of its attributes, text and children (or {@link #size()} if the element is the last)
+     */
+    public int end(int element)
+    {
+        int depth = depth(element);
+        int index = element + 1;
+
+        while (index < tokens.length && within(index, depth))
+        {
+            index++;
+        }
+
+        return index;
+    }
+
+    /**
+     *
+     * @return ByteBuffer of the XML, which offsets are within
+     */
+    public ByteBuffer buffer()
+    {
+        return buffer;
+    }
+
+    /**
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return format("XMLIndex of {0} tokens", tokens.length);
+    }
+
+    /**
+     * Build the index, moving the given parser through the whole of its XML.
+     * @param parser of the XML to index
+     * @throws IllegalArgumentException if the XML is not well formed, or is nested deeper than {@link #MAX_DEPTH}
+     */
+    private XMLIndex(XMLPullParser parser)
+    {
+        super();
+        this.parser = parser;
+        this.buffer = parser.buffer();
+
+        // Initially (about) a quarter of the size of the XML, as typical of indented XML
+        long[] tokens = new long[Math.max(16, buffer.remaining() / 32)];
+        int size = 0;
+        int lastEvent = XMLPullParser.END_DOCUMENT;
+
+        for (int event = parser.next(); event != XMLPullParser.END_DOCUMENT; lastEvent = event, event = parser.next())
+        {
+            int depth = parser.depth() - 1;
+
+            if (event == XMLPullParser.START_ELEMENT)
+            {
+                if (depth > MAX_DEPTH)
+                {
+                    throw new IllegalArgumentException(format("Element {0} is deeper than {1} at byte {2}", parser.name(), MAX_DEPTH, parser.nameOffset()));
+                }
+
+                int attributeCount = parser.attributeCount();
+
+                if (size + 1 + 2 * attributeCount > tokens.length)
+                {
+                    tokens = Arrays.copyOf(tokens, Math.max(size + 1 + 2 * attributeCount, tokens.length + (tokens.length >> 1)));
+                }
+
+                tokens[size++] = token(ELEMENT, depth, parser.nameOffset(), parser.nameLength());
+
+                for (int i = 0; i < attributeCount; i++)
+                {
+                    tokens[size++] = token(ATTRIBUTE_NAME, depth, parser.attributeNameOffset(i), parser.attributeNameLength(i));
+                    tokens[size++] = token(ATTRIBUTE_VALUE, depth, parser.attributeValueOffset(i), parser.attributeValueLength(i));
+                }
+            }
+            else if (event == XMLPullParser.TEXT && (lastEvent == XMLPullParser.TEXT || !parser.whitespace()))
+            {
+                // Whitespace only after other text (either side of a comment or CDATA section) is part of the text between two tags, so is indexed
+                if (size == tokens.length)
+                {
+                    tokens = Arrays.copyOf(tokens, tokens.length + (tokens.length >> 1));
+                }
+
+                tokens[size++] = token(parser.cdata() ? CDATA : TEXT, depth, parser.textOffset(), parser.textLength());
+            }
+        }
+
+        this.tokens = size == tokens.length ? tokens : Arrays.copyOf(tokens, size);
+    }
+
+    /**
+     *
+     * @param type
+     * @param depth
+     * @param offset
+     * @param length which is held as {@link #MAX_LENGTH} if (at least) as long
+     * @return long token
+     */
+    private static long token(int type, int depth, int offset, int length)
+    {
+        return (long) type << 60 | (long) depth << 48 | (long) Math.min(length, MAX_LENGTH) << 32 | offset & 0xFFFFFFFFL;
+    }
+
+    /**
+     *
+     * @param index of a token after (the token of) an element
+     * @param depth of the element
+     * @return boolean true if the given token is within the element i.e. is deeper, or is an attribute or text of the element itself (rather than of an element around it)
+     */
+    private boolean within(int index, int depth)
+    {
+        int tokenDepth = depth(index);
+        return tokenDepth > depth || (tokenDepth == depth && type(index) != ELEMENT);
+    }
+
+    /**
+     * Find the length of a token, whose length was too long to be held by the token, by reading its bytes up to where the token must end.
+     * @param index of a token
+     * @return int length (in bytes) of the token
+     */
+    private int scan(int index)
+    {
+        int offset = offset(index);
+        int position = offset;
+        int limit = buffer.limit();
+
+        switch (type(index))
+        {
+            case ATTRIBUTE_VALUE:
+                byte quote = buffer.get(offset - 1);
+
+                while (buffer.get(position) != quote)
+                {
+                    position++;
+                }
+
+                break;
+
+            case TEXT:
+                while (position < limit && buffer.get(position) != '<')
+                {
+                    position++;
+                }
+
+                break;
+
+            case CDATA:
+                while (buffer.get(position) != ']' || buffer.get(position + 1) != ']' || buffer.get(position + 2) != '>')
+                {
+                    position++;
+                }
+
+                break;
+
+            default:
+                for (byte b = buffer.get(position); b != '>' && b != '/' && b != '=' && b > ' '; b = buffer.get(position))
+                {
+                    position++;
+                }
+        }
+
+        return position - offset;
+    }
+
+    /**
+     * Find (in document order) each element that matches the given xpath, until the xpath has its value, in a single pass of the tokens,
+     * where each element is a candidate for those steps of the xpath that its ancestors leave to be matched (as {@link XML#get(String)} walks its nodes).
+     * @param path
+     */
+    private void find(XPath path)
+    {
+        // For each depth, the steps (as bits) the children of the last element at that depth are candidates for
+        long[] steps = new long[16];
+        int last = path.names.length - 1;
+
+        for (int index = 0; index < tokens.length; index++)
+        {
+            if (type(index) != ELEMENT)
+            {
+                continue;
+            }
+
+            int depth = depth(index);
+            long candidates = depth == 0 ? 1L : steps[depth - 1];
+            long children = 0L;
+
+            for (int step = 0; step <= last && candidates != 0L; step++)
+            {
+                if ((candidates & (1L << step)) == 0)
+                {
+                    continue;
+                }
+
+                if (path.descendants[step])
+                {
+                    // Still a candidate below this element, whether or not this element matches
+                    children |= 1L << step;
+                }
+
+                if (path.names[step] != null && !equals(path.names[step], index))
+                {
+                    continue;
+                }
+
+                if (step < last)
+                {
+                    children |= 1L << (step + 1);
+                }
+                else if (path.match(index))
+                {
+                    return;
+                }
+            }
+
+            if (depth == steps.length)
+            {
+                steps = Arrays.copyOf(steps, depth * 2);
+            }
+
+            steps[depth] = children;
+        }
+    }
+
+    /**
+     *
+     * @param element index of the token of an element
+     * @return String start tag of the given element as written, i.e. from its &lt; to its &gt;
+     */
+    private String startTag(int element)
+    {
+        int start = offset(element) - 1;
+        int end = offset(element + 1 < tokens.length && type(element + 1) == ATTRIBUTE_NAME ? element + 1 : element);
+
+        // Past the last attribute value (whose quote would end it) to the end of the tag
+        for (int attribute = element + 1; attribute < tokens.length && type(attribute) == ATTRIBUTE_NAME; attribute += 2)
+        {
+            end = offset(attribute + 1) + length(attribute + 1) + 1;
+        }
+
+        while (buffer.get(end) != '>')
+        {
+            end++;
+        }
+
+        byte[] bytes = new byte[end + 1 - start];
+
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = buffer.get(start + i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     *
+     * @param name
+     * @param index of a token
+     * @return boolean true if the bytes of the given token are the given name
+     */
+    private boolean equals(byte[] name, int index)
+    {
+        if (length(index) != name.length)
+        {
+            return false;
+        }
+
+        int offset = offset(index);
+
+        for (int i = 0; i < name.length; i++)
+        {
+            if (buffer.get(offset + i) != name[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     *
+     * @param text to append to, which may be null
+     * @param characters to trim and append
+     * @return StringBuilder text
+     */
+    private static StringBuilder append(StringBuilder text, StringBuilder characters)
+    {
+        String trimmed = characters.toString().trim();
+
+        if (trimmed.isEmpty())
+        {
+            return text;
+        }
+
+        return text == null ? new StringBuilder(trimmed) : text.append(trimmed);
+    }
+
+    /**
+     * An xpath of the form supported by {@link XMLIndex#get(String)}, split into its steps, each with the bytes of its name,
+     * along with what has been found by the xpath i.e. the first value, or whether any element has been given to its callback.
+     * <br/>
+     * @author David Ainslie
+     *
+     */
+    private final class XPath
+    {
+        /** UTF-8 bytes of the name of each step (of an element), or null for a step of any element (*). */
+        private final byte[][] names;
+
+        /** Whether each step may match at any depth (below the previous step) i.e. follows //. */
+        private final boolean[] descendants;
+
+        /** Alternative names of the attribute of the last step, empty for just @, otherwise null for text. */
+        private final byte[][] attributes;
+
+        /** Callback of the attributes of each matching element, otherwise null to find the first value. */
+        private final AttributeCallback attributeCallback;
+
+        /** */
+        private String value;
+
+        /** */
+        private boolean resolved;
+
+        /**
+         *
+         * @param xpath
+         * @param attributeCallback which may be null
+         * @throws IllegalArgumentException if the xpath has no step of an element, or more steps than can be found
+         */
+        private XPath(String xpath, AttributeCallback attributeCallback)
+        {
+            List<byte[]> names = new ArrayList<>();
+            List<Boolean> descendants = new ArrayList<>();
+            byte[][] attributes = null;
+            int position = 0;
+
+            while (position < xpath.length())
+            {
+                boolean descendant = position == 0 || xpath.startsWith("//", position);
+                position += xpath.startsWith("//", position) ? 2 : xpath.startsWith("/", position) ? 1 : 0;
+                int end = xpath.indexOf('/', position);
+                String step = xpath.substring(position, end == -1 ? xpath.length() : end);
+                position = end == -1 ? xpath.length() : end;
+
+                if (step.startsWith("@"))
+                {
+                    String[] alternatives = step.length() == 1 ? new String[0] : step.substring(1).split("\\|");
+                    attributes = new byte[alternatives.length][];
+
+                    for (int i = 0; i < alternatives.length; i++)
+                    {
+                        attributes[i] = alternatives[i].trim().getBytes(StandardCharsets.UTF_8);
+                    }
+
+                    break;
+                }
+
+                if ("text()".equals(step))
+                {
+                    break;
+                }
+
+                names.add("*".equals(step) ? null : step.getBytes(StandardCharsets.UTF_8));
+                descendants.add(descendant);
+            }
+
+            if (names.isEmpty() || names.size() > Long.SIZE)
+            {
+                throw new IllegalArgumentException(format("No element in xpath {0}, or more than {1} elements", xpath, Long.SIZE));
+            }
+
+            this.names = names.toArray(new byte[names.size()][]);
+            this.descendants = new boolean[descendants.size()];
+
+            for (int i = 0; i < this.descendants.length; i++)
+            {
+                this.descendants[i] = descendants.get(i);
+            }
+
+            this.attributes = attributes;
+            this.attributeCallback = attributeCallback;
+        }
+
+        /**
+         * An element matches this path, which is given to the callback, otherwise its value (if any) is taken.
+         * @param element index of the token of the element
+         * @return boolean true once this path has its value
+         */
+        private boolean match(int element)
+        {
+            if (attributeCallback != null)
+            {
+                Map<String, String> attributeNameValuePairs = new LinkedHashMap<>();
+
+                for (int attribute = element + 1; attribute < tokens.length && type(attribute) == ATTRIBUTE_NAME; attribute += 2)
+                {
+                    attributeNameValuePairs.put(string(attribute), string(attribute + 1));
+                }
+
+                attributeCallback.got(attributeNameValuePairs);
+                resolved = true;
+                return false;
+            }
+
+            value = value(element);
+            return value != null;
+        }
+
+        /**
+         *
+         * @param element index of the token of an element matching this path
+         * @return String value (of this path) of the given element, or null if the element has no such attribute
+         */
+        private String value(int element)
+        {
+            if (attributes == null)
+            {
+                String text = text(element);
+                return text == null ? "" : text;
+            }
+
+            if (attributes.length == 0)
+            {
+                return startTag(element);
+            }
+
+            for (int attribute = element + 1; attribute < tokens.length && type(attribute) == ATTRIBUTE_NAME; attribute += 2)
+            {
+                for (byte[] name : attributes)
+                {
+                    if (XMLIndex.this.equals(name, attribute))
+                    {
+                        return string(attribute + 1);
+                    }
+                }
+            }
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.kissthinker.xml;
+
+import static java.text.MessageFormat.format;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.kissthinker.xml.XML.Format;
+
+/**
+ * Writes objects of a class marked by {@link XMLElement} as XML, straight to an {@link XMLStream} i.e. without reflection and without building {@link XML}.<br/>
+ * Each marshaller is generated (by {@link XMLProcessor}) upon compilation of its class, named after the class e.g. OrderXMLMarshaller for Order, and so can be instantiated directly, or looked up:
+ * <pre>
+ * XMLMarshaller.of(Order.class).writeTo(writer, Format.COMPACT, order);
+ * </pre>
+ * A marshaller holds no state and so can be used by any number of threads.
+ * @author David Ainslie
+ *
+ * @param <T> the type of object to write
+ */
+public abstract class XMLMarshaller<T>
+{
+    /** Name appended to the name of a class (marked by {@link XMLElement}) to give the name of its generated marshaller. */
+    static final String SUFFIX = "XMLMarshaller";
+
+    /** */
+    private static final ConcurrentMap<Class<?>, XMLMarshaller<?>> MARSHALLERS = new ConcurrentHashMap<>();
+
+    /** Name of the (root) node. */
+    private final String name;
+
+    /**
+     * Get the generated marshaller of the given class, where the marshaller is loaded (just once) by name.
+     * @param type a class marked by {@link XMLElement}
+     * @return XMLMarshaller<T>
+     * @throws IllegalArgumentException if there is no marshaller for the given class
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> XMLMarshaller<T> of(Class<T> type)
+    {
+        XMLMarshaller<?> marshaller = MARSHALLERS.get(type);
+
+        if (marshaller == null)
+        {
+            marshaller = generated(type, SUFFIX, XMLMarshaller.class);
+            MARSHALLERS.putIfAbsent(type, marshaller);
+        }
+
+        return (XMLMarshaller<T>) marshaller;
+    }
+
+    /**
+     *
+     * @return String name of the (root) node
+     */
+    public String name()
+    {
+        return name;
+    }
+
+    /**
+     * Write the given object as XML in the given {@link Format} to the given {@link Appendable}.
+     * @param appendable to write to
+     * @param format of the written XML e.g. {@link Format#COMPACT}
+     * @param object to write
+     * @throws IOException if the given appendable fails to be written to
+     */
+    public void writeTo(Appendable appendable, Format format, T object) throws IOException
+    {
+        write(XMLStream.create(appendable, format, name), object);
+    }
+
+    /**
+     * Write the given object as XML to the given {@link Appendable}.
+     * @see #writeTo(Appendable, Format, Object)
+     * @param appendable to write to
+     * @param object to write
+     * @throws IOException if the given appendable fails to be written to
+     */
+    public void writeTo(Appendable appendable, T object) throws IOException
+    {
+        writeTo(appendable, Format.PRETTY, object);
+    }
+
+    /**
+     * Write the given object as XML in the given {@link Format}, encoded as UTF-8, to the given {@link OutputStream}.
+     * @param outputStream to write to
+     * @param format of the written XML e.g. {@link Format#COMPACT}
+     * @param object to write
+     * @throws IOException if the given output stream fails to be written to
+     */
+    public void writeTo(OutputStream outputStream, Format format, T object) throws IOException
+    {
+        write(XMLStream.create(outputStream, format, name), object);
+    }
+
+    /**
+     * The given object as XML in the given {@link Format}.
+     * @param object to write
+     * @param format of the XML string e.g. {@link Format#COMPACT}
+     * @return String
+     */
+    public String toString(T object, Format format)
+    {
+        StringBuilder stringBuilder = new StringBuilder();
+
+        try
+        {
+            writeTo(stringBuilder, format, object);
+        }
+        catch (IOException e)
+        {
+            // A StringBuilder never throws an IOException
+            throw new IllegalStateException(e);
+        }
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Write the given object as a (child) node of the given name, of the current node of the given stream.
+     * @param xmlStream to write to
+     * @param name of the node
+     * @param object to write
+     * @throws IOException if the stream fails to be written to
+     */
+    public void write(XMLStream xmlStream, String name, T object) throws IOException
+    {
+        xmlStream.node(name);
+        write(xmlStream, object);
+    }
+
+    /**
+     *
+     * @param name of the (root) node
+     */
+    protected XMLMarshaller(String name)
+    {
+        super();
+        this.name = name;
+    }
+
+    /**
+     * Write the attributes and child nodes of the given object, where the object's node is the current node of the given stream.
+     * @param xmlStream to write to
+     * @param object to write
+     * @throws IOException if the stream fails to be written to
+     */
+    protected abstract void writeContent(XMLStream xmlStream, T object) throws IOException;
+
+    /**
+     * Instantiate the class generated for the given class.
+     * @param type a class marked by {@link XMLElement}
+     * @param suffix of the generated class's name
+     * @param generatedType expected of the generated class
+     * @return G
+     * @throws IllegalArgumentException if there is no such generated class
+     * @throws IllegalStateException if the generated class fails to be instantiated i.e. its constructor throws
+     */
+    static <G> G generated(Class<?> type, String suffix, Class<G> generatedType)
+    {
+        // The binary name of the given class, so a nested class Order.Line is generated as Order$LineXMLMarshaller, which no other (source) class is named
+        String name = type.getName() + suffix;
+
+        try
+        {
+            return generatedType.cast(Class.forName(name, true, type.getClassLoader()).getDeclaredConstructor().newInstance());
+        }
+        catch (InvocationTargetException e)
+        {
+            throw new IllegalStateException(format("Failed to instantiate generated {0} for {1}", name, type.getName()), e.getCause());
+        }
+        catch (ReflectiveOperationException | ClassCastException e)
+        {
+            throw new IllegalArgumentException(format("No generated {0} for {1} - is the class marked by @{2} and compiled with annotation processing?",
+                                                      name, type.getName(), XMLElement.class.getSimpleName()), e);
+        }
+    }
+
+    /**
+     * Write the content of the given object and end its node.
+     * @param xmlStream to write to
+     * @param object to write
+     * @throws IOException
+     */
+    private void write(XMLStream xmlStream, T object) throws IOException
+    {
+        writeContent(xmlStream, object);
+        xmlStream.nodeEnd();
+    }
+}
@@ -0,0 +1,798 @@
+package com.kissthinker.xml;
+
+import static java.text.MessageFormat.format;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Annotation processor that generates an {@link XMLMarshaller} and an {@link XMLUnmarshaller} for each class marked by {@link XMLElement},
+ * so that objects are written as (and read from) XML by plain (generated) code instead of by reflection.<br/>
+ * Registered (in META-INF/services) to run whenever this library is on the classpath of javac.
+ * <p/>
+ * The class must be top level or static nested, and neither it nor any class enclosing it may be private, as the generated classes (in the same package) refer to it.
+ * Only the (non static) fields of the class itself are written, in order of declaration, where attributes are written before nodes.
+ * A field is accessed directly, unless it is private, in which case there must be a getter (getName or isName) and, to be read, a setter (setName).
+ * <p/>
+ * To be read, a class needs a (non private) constructor without parameters, and a value needs a static valueOf(String) or a constructor of String (as do primitives, their wrappers and enums),
+ * where any field that cannot be read is skipped (with a warning) so that the class can still be written.
+ * @author David Ainslie
+ *
+ */
+@SupportedAnnotationTypes({ "com.kissthinker.xml.XMLElement", "com.kissthinker.xml.XMLAttribute" })
+public class XMLProcessor extends AbstractProcessor
+{
+    /**
+     *
+     * @see javax.annotation.processing.AbstractProcessor#getSupportedSourceVersion()
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    /**
+     *
+     * @see javax.annotation.processing.AbstractProcessor#process(java.util.Set, javax.annotation.processing.RoundEnvironment)
+     */
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnvironment)
+    {
+        for (TypeElement type : ElementFilter.typesIn(roundEnvironment.getElementsAnnotatedWith(XMLElement.class)))
+        {
+            if (type.getKind() != ElementKind.CLASS || !type.getTypeParameters().isEmpty()
+                || (type.getNestingKind() != NestingKind.TOP_LEVEL && !type.getModifiers().contains(Modifier.STATIC)))
+            {
+                error(type, "@{0} is only supported on (top level or static nested) classes without type parameters", XMLElement.class.getSimpleName());
+                continue;
+            }
+
+            if (!accessible(type))
+            {
+                error(type, "@{0} is not supported on private classes, nor on classes nested in a private class", XMLElement.class.getSimpleName());
+                continue;
+            }
+
+            List<Property> properties = properties(type);
+
+            if (properties != null)
+            {
+                generateMarshaller(type, properties);
+
+                if (creatable(type))
+                {
+                    generateUnmarshaller(type, properties);
+                }
+                else
+                {
+                    warning(type, "No {0} generated as {1} is abstract or has no (non private) constructor without parameters", generatedName(type, XMLUnmarshaller.SUFFIX), type.getSimpleName());
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     *
+     * @param type marked by {@link XMLElement}
+     * @return List<Property> to write (and read), or null upon error
+     */
+    private List<Property> properties(TypeElement type)
+    {
+        List<Property> attributes = new ArrayList<>();
+        List<Property> nodes = new ArrayList<>();
+        Set<String> attributeNames = new HashSet<>();
+        Set<String> nodeNames = new HashSet<>();
+        boolean valid = true;
+
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements()))
+        {
+            XMLAttribute xmlAttribute = field.getAnnotation(XMLAttribute.class);
+            XMLElement xmlElement = field.getAnnotation(XMLElement.class);
+
+            if (xmlAttribute == null && xmlElement == null)
+            {
+                continue;
+            }
+
+            if (field.getModifiers().contains(Modifier.STATIC))
+            {
+                error(field, "Static fields cannot be XML");
+                valid = false;
+                continue;
+            }
+
+            Property property = new Property(field, xmlAttribute != null ? xmlAttribute.name() : xmlElement.name(), xmlAttribute != null);
+
+            if (property.getter == null || (property.list && property.itemType.getKind() != TypeKind.DECLARED)
+                || (property.attribute && (property.list || property.nodeType != null)))
+            {
+                error(field, property.getter == null ? "Private field {0} requires a getter"
+                             : property.attribute ? "Attribute {0} must be a value rather than a list or XML"
+                             : "List {0} must be of a class (rather than a wildcard or type variable)", field.getSimpleName());
+                valid = false;
+                continue;
+            }
+
+            if (!(property.attribute ? attributeNames : nodeNames).add(property.name))
+            {
+                error(field, "{0} {1} is already declared by another field", property.attribute ? "Attribute" : "Node", property.name);
+                valid = false;
+                continue;
+            }
+
+            (property.attribute ? attributes : nodes).add(property);
+        }
+
+        attributes.addAll(nodes);
+        return valid ? attributes : null;
+    }
+
+    /**
+     * Generate the {@link XMLMarshaller} of the given type.
+     * @param type marked by {@link XMLElement}
+     * @param properties of the type
+     */
+    private void generateMarshaller(TypeElement type, List<Property> properties)
+    {
+        String typeName = type.getQualifiedName().toString();
+
+        try (PrintWriter out = source(type, XMLMarshaller.SUFFIX))
+        {
+            out.printf("public final class %s extends %s<%s>%n", generatedName(type, XMLMarshaller.SUFFIX), XMLMarshaller.class.getName(), typeName);
+            out.printf("{%n");
+
+            for (Property property : properties)
+            {
+                if (property.nodeType != null)
+                {
+                    out.printf("    private static final %1$s %2$s = new %1$s();%n%n", generatedQualifiedName(property.nodeType, XMLMarshaller.SUFFIX), property.constant());
+                }
+            }
+
+            out.printf("    public %s()%n", generatedName(type, XMLMarshaller.SUFFIX));
+            out.printf("    {%n");
+            out.printf("        super(%s);%n", literal(rootName(type)));
+            out.printf("    }%n%n");
+            out.printf("    @Override%n");
+            out.printf("    protected void writeContent(%s xmlStream, %s object) throws java.io.IOException%n", XMLStream.class.getName(), typeName);
+            out.printf("    {%n");
+
+            for (Property property : properties)
+            {
+                if (property != properties.get(0))
+                {
+                    out.printf("%n");
+                }
+
+                if (property.primitive())
+                {
+                    out.printf("        %s%n", write(property, "object." + property.getter));
+                    continue;
+                }
+
+                out.printf("        %s %s = object.%s;%n%n", property.type, property.variable(), property.getter);
+                out.printf("        if (%s != null)%n", property.variable());
+                out.printf("        {%n");
+
+                if (property.list)
+                {
+                    out.printf("            for (%s item : %s)%n", property.itemType, property.variable());
+                    out.printf("            {%n");
+                    out.printf("                if (item != null)%n");
+                    out.printf("                {%n");
+                    out.printf("                    %s%n", write(property, "item"));
+                    out.printf("                }%n");
+                    out.printf("            }%n");
+                }
+                else
+                {
+                    out.printf("            %s%n", write(property, property.variable()));
+                }
+
+                out.printf("        }%n");
+            }
+
+            out.printf("    }%n");
+            out.printf("}%n");
+        }
+        catch (IOException e)
+        {
+            error(type, "Failed to generate {0}: {1}", generatedName(type, XMLMarshaller.SUFFIX), e);
+        }
+    }
+
+    /**
+     * Generate the {@link XMLUnmarshaller} of the given type.
+     * @param type marked by {@link XMLElement}
+     * @param properties of the type
+     */
+    private void generateUnmarshaller(TypeElement type, List<Property> properties)
+    {
+        String typeName = type.getQualifiedName().toString();
+        List<Property> attributes = new ArrayList<>();
+        List<Property> texts = new ArrayList<>();
+        List<Property> nodes = new ArrayList<>();
+
+        for (Property property : properties)
+        {
+            if (property.nodeType != null ? !creatable(property.nodeType) : property.conversion("text") == null)
+            {
+                warning(property.field, "Field {0} will not be read as its type {1} cannot be created from XML", property.field.getSimpleName(), property.itemType);
+            }
+            else if (property.setter == null && !property.list)
+            {
+                warning(property.field, "Private field {0} will not be read as it has no setter", property.field.getSimpleName());
+            }
+            else
+            {
+                (property.attribute ? attributes : property.nodeType == null ? texts : nodes).add(property);
+            }
+        }
+
+        try (PrintWriter out = source(type, XMLUnmarshaller.SUFFIX))
+        {
+            out.printf("public final class %s extends %s<%s>%n", generatedName(type, XMLUnmarshaller.SUFFIX), XMLUnmarshaller.class.getName(), typeName);
+            out.printf("{%n");
+
+            for (Property property : nodes)
+            {
+                out.printf("    private static final %1$s %2$s = new %1$s();%n%n", generatedQualifiedName(property.nodeType, XMLUnmarshaller.SUFFIX), property.constant());
+            }
+
+            out.printf("    @Override%n");
+            out.printf("    protected %s create()%n", typeName);
+            out.printf("    {%n");
+            out.printf("        return new %s();%n", typeName);
+            out.printf("    }%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    protected void attributes(%s object, org.xml.sax.Attributes attributes)%n", typeName);
+            out.printf("    {%n");
+
+            if (!attributes.isEmpty())
+            {
+                out.printf("        for (int i = 0, length = attributes.getLength(); i < length; i++)%n");
+                out.printf("        {%n");
+                out.printf("            java.lang.String value = attributes.getValue(i);%n%n");
+                out.printf("            switch (attributes.getQName(i))%n");
+                out.printf("            {%n");
+
+                for (Property property : attributes)
+                {
+                    out.printf("                case %s:%n", literal(property.name));
+                    out.printf("                    %s%n", property.set(property.conversion("value")));
+                    out.printf("                    break;%n%n");
+                }
+
+                out.printf("                default:%n");
+                out.printf("                    break;%n");
+                out.printf("            }%n");
+                out.printf("        }%n");
+            }
+
+            out.printf("    }%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    protected %s<?> unmarshaller(java.lang.String name)%n", XMLUnmarshaller.class.getName());
+            out.printf("    {%n");
+            out.printf("        switch (name)%n");
+            out.printf("        {%n");
+
+            for (Property property : nodes)
+            {
+                out.printf("            case %s:%n", literal(property.name));
+                out.printf("                return %s;%n%n", property.constant());
+            }
+
+            out.printf("            default:%n");
+            out.printf("                return null;%n");
+            out.printf("        }%n");
+            out.printf("    }%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    protected void text(%s object, java.lang.String name, java.lang.String text)%n", typeName);
+            out.printf("    {%n");
+            bind(out, texts, "text");
+            out.printf("    }%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    protected void child(%s object, java.lang.String name, java.lang.Object child)%n", typeName);
+            out.printf("    {%n");
+            bind(out, nodes, "child");
+            out.printf("    }%n");
+            out.printf("}%n");
+        }
+        catch (IOException e)
+        {
+            error(type, "Failed to generate {0}: {1}", generatedName(type, XMLUnmarshaller.SUFFIX), e);
+        }
+    }
+
+    /**
+     * Generate the switch (on the name of a child node) that sets the given properties from the given value.
+     * @param out to write to
+     * @param properties of child nodes
+     * @param value either "text" (of a child node to convert) or "child" (an object read from a child node)
+     */
+    private void bind(PrintWriter out, List<Property> properties, String value)
+    {
+        out.printf("        switch (name)%n");
+        out.printf("        {%n");
+
+        for (Property property : properties)
+        {
+            String item = property.nodeType != null ? "(" + property.itemType + ") " + value : property.conversion(value);
+            out.printf("            case %s:%n", literal(property.name));
+
+            if (property.list)
+            {
+                out.printf("            {%n");
+                out.printf("                %s %s = object.%s;%n%n", property.type, property.variable(), property.getter);
+                out.printf("                if (%s == null)%n", property.variable());
+                out.printf("                {%n");
+
+                if (property.setter == null)
+                {
+                    out.printf("                    break;%n");
+                }
+                else
+                {
+                    out.printf("                    %s = new java.util.ArrayList<>();%n", property.variable());
+                    out.printf("                    %s%n", property.set(property.variable()));
+                }
+
+                out.printf("                }%n%n");
+                out.printf("                %s.add(%s);%n", property.variable(), item);
+                out.printf("                break;%n");
+                out.printf("            }%n%n");
+            }
+            else
+            {
+                out.printf("                %s%n", property.set(item));
+                out.printf("                break;%n%n");
+            }
+        }
+
+        out.printf("            default:%n");
+        out.printf("                break;%n");
+        out.printf("        }%n");
+    }
+
+    /**
+     *
+     * @param property to write
+     * @param value expression of the (non null) value (or list item) to write
+     * @return String statement writing the given value
+     */
+    private String write(Property property, String value)
+    {
+        if (property.attribute)
+        {
+            return format("xmlStream.attribute({0}, {1});", literal(property.name), value);
+        }
+
+        if (property.nodeType != null)
+        {
+            return format("{0}.write(xmlStream, {1}, {2});", property.constant(), literal(property.name), value);
+        }
+
+        String text = property.itemType.toString().equals(String.class.getName()) ? value : "java.lang.String.valueOf(" + value + ")";
+        return format("xmlStream.node({0}, {1}).nodeEnd();", literal(property.name), text);
+    }
+
+    /**
+     * Start the generated source file of the given type, up to the declaration of the generated class.
+     * @param type marked by {@link XMLElement}
+     * @param suffix of the generated class's name
+     * @return PrintWriter to write the generated class to
+     * @throws IOException
+     */
+    private PrintWriter source(TypeElement type, String suffix) throws IOException
+    {
+        PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(generatedQualifiedName(type, suffix), type).openWriter());
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+
+        if (!packageElement.isUnnamed())
+        {
+            out.printf("package %s;%n%n", packageElement.getQualifiedName());
+        }
+
+        out.printf("/**%n");
+        out.printf(" * Generated by %s from %s - do not edit.%n", getClass().getName(), type.getQualifiedName());
+        out.printf(" */%n");
+        return out;
+    }
+
+    /**
+     *
+     * @param type marked by {@link XMLElement}
+     * @param suffix of the generated class's name
+     * @return String simple name of the class generated for the given type, from its binary name e.g. Order$LineXMLMarshaller for the nested class Order.Line,
+     *         so it cannot clash with the class generated for another type e.g. Order_LineXMLMarshaller for a top level class Order_Line
+     */
+    private String generatedName(TypeElement type, String suffix)
+    {
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        return binaryName.substring(binaryName.lastIndexOf('.') + 1) + suffix;
+    }
+
+    /**
+     *
+     * @param type marked by {@link XMLElement}
+     * @param suffix of the generated class's name
+     * @return String qualified name of the class generated for the given type
+     */
+    private String generatedQualifiedName(TypeElement type, String suffix)
+    {
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+        String name = generatedName(type, suffix);
+        return packageElement.isUnnamed() ? name : packageElement.getQualifiedName() + "." + name;
+    }
+
+    /**
+     *
+     * @param type marked by {@link XMLElement}
+     * @return String name of the (root) node of the given type
+     */
+    private String rootName(TypeElement type)
+    {
+        String name = type.getAnnotation(XMLElement.class).name();
+
+        if ("".equals(name))
+        {
+            name = type.getSimpleName().toString();
+            name = Character.toLowerCase(name.charAt(0)) + name.substring(1);
+        }
+
+        return name;
+    }
+
+    /**
+     *
+     * @param type
+     * @return boolean true if the given type can be referred to by generated code (in the same package) i.e. neither it nor any class enclosing it is private
+     */
+    private boolean accessible(TypeElement type)
+    {
+        for (Element element = type; element.getKind() != ElementKind.PACKAGE; element = element.getEnclosingElement())
+        {
+            if (element.getModifiers().contains(Modifier.PRIVATE))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     *
+     * @param type
+     * @return boolean true if the given type can be instantiated by generated code i.e. is not abstract and has a (non private) constructor without parameters
+     */
+    private boolean creatable(TypeElement type)
+    {
+        if (type.getModifiers().contains(Modifier.ABSTRACT))
+        {
+            return false;
+        }
+
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements()))
+        {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     *
+     * @param value
+     * @return String the given value as a Java string literal
+     */
+    private String literal(String value)
+    {
+        return processingEnv.getElementUtils().getConstantExpression(value);
+    }
+
+    /**
+     *
+     * @param element in error
+     * @param message pattern as per {@link java.text.MessageFormat}
+     * @param arguments of the message
+     */
+    private void error(Element element, String message, Object... arguments)
+    {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, format(message, arguments), element);
+    }
+
+    /**
+     *
+     * @param element warned about
+     * @param message pattern as per {@link java.text.MessageFormat}
+     * @param arguments of the message
+     */
+    private void warning(Element element, String message, Object... arguments)
+    {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, format(message, arguments), element);
+    }
+
+    /**
+     * A field to write (and read) as an attribute or node.
+     */
+    private final class Property
+    {
+        /** */
+        private final VariableElement field;
+
+        /** Name of the attribute or node. */
+        private final String name;
+
+        /** */
+        private final boolean attribute;
+
+        /** Type of the field. */
+        private final TypeMirror type;
+
+        /** Whether the field is a {@link java.util.List}, where each item is a node. */
+        private final boolean list;
+
+        /** Type of the field, or of each item of a list. */
+        private final TypeMirror itemType;
+
+        /** Class (of the field, or of each item of a list) marked by {@link XMLElement}, otherwise null for a value written as text. */
+        private final TypeElement nodeType;
+
+        /** Expression (of an object) to get the field e.g. "name" or "getName()", which is null if there is no access. */
+        private final String getter;
+
+        /** Name of the field or its setter e.g. "name" or "setName", which is null if the field cannot be set. */
+        private final String setter;
+
+        /**
+         *
+         * @param field
+         * @param name as given by the field's annotation
+         * @param attribute
+         */
+        private Property(VariableElement field, String name, boolean attribute)
+        {
+            super();
+            this.field = field;
+            this.name = "".equals(name) ? field.getSimpleName().toString() : name;
+            this.attribute = attribute;
+            this.type = field.asType();
+
+            TypeMirror listType = processingEnv.getTypeUtils().erasure(processingEnv.getElementUtils().getTypeElement(List.class.getName()).asType());
+
+            if (type.getKind() == TypeKind.DECLARED && processingEnv.getTypeUtils().isSameType(processingEnv.getTypeUtils().erasure(type), listType)
+                && ((DeclaredType) type).getTypeArguments().size() == 1)
+            {
+                list = true;
+                itemType = ((DeclaredType) type).getTypeArguments().get(0);
+            }
+            else
+            {
+                list = false;
+                itemType = type;
+            }
+
+            if (itemType.getKind() == TypeKind.DECLARED && ((DeclaredType) itemType).asElement().getAnnotation(XMLElement.class) != null)
+            {
+                nodeType = (TypeElement) ((DeclaredType) itemType).asElement();
+            }
+            else
+            {
+                nodeType = null;
+            }
+
+            getter = getter();
+            setter = setter();
+        }
+
+        /**
+         *
+         * @return boolean true if the field is a primitive, and so is never null
+         */
+        private boolean primitive()
+        {
+            return type.getKind().isPrimitive();
+        }
+
+        /**
+         *
+         * @return String name of a local variable holding the field's value
+         */
+        private String variable()
+        {
+            return field.getSimpleName() + "Value";
+        }
+
+        /**
+         *
+         * @return String name of a constant holding the marshaller of {@link #nodeType}
+         */
+        private String constant()
+        {
+            return field.getSimpleName().toString().replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase();
+        }
+
+        /**
+         *
+         * @param value expression of the value to set
+         * @return String statement setting the field of "object" to the given value
+         */
+        private String set(String value)
+        {
+            return setter.equals(field.getSimpleName().toString()) ? format("object.{0} = {1};", setter, value) : format("object.{0}({1});", setter, value);
+        }
+
+        /**
+         *
+         * @param text expression of a string
+         * @return String expression converting the given string to {@link #itemType}, or null if there is no conversion
+         */
+        private String conversion(String text)
+        {
+            switch (itemType.getKind())
+            {
+                case BOOLEAN:
+                    return "java.lang.Boolean.parseBoolean(" + text + ")";
+
+                case BYTE:
+                    return "java.lang.Byte.parseByte(" + text + ")";
+
+                case SHORT:
+                    return "java.lang.Short.parseShort(" + text + ")";
+
+                case INT:
+                    return "java.lang.Integer.parseInt(" + text + ")";
+
+                case LONG:
+                    return "java.lang.Long.parseLong(" + text + ")";
+
+                case FLOAT:
+                    return "java.lang.Float.parseFloat(" + text + ")";
+
+                case DOUBLE:
+                    return "java.lang.Double.parseDouble(" + text + ")";
+
+                case CHAR:
+                    return XMLUnmarshaller.class.getName() + ".toChar(" + text + ")";
+
+                case DECLARED:
+                    break;
+
+                default:
+                    return null;
+            }
+
+            TypeElement itemElement = (TypeElement) ((DeclaredType) itemType).asElement();
+            String itemName = itemElement.getQualifiedName().toString();
+
+            if (itemName.equals(String.class.getName()))
+            {
+                return text;
+            }
+
+            if (itemName.equals(Character.class.getName()))
+            {
+                return XMLUnmarshaller.class.getName() + ".toChar(" + text + ")";
+            }
+
+            if (itemElement.getKind() == ElementKind.ENUM)
+            {
+                return itemName + ".valueOf(" + text + ")";
+            }
+
+            TypeMirror string = processingEnv.getElementUtils().getTypeElement(String.class.getName()).asType();
+
+            for (ExecutableElement method : ElementFilter.methodsIn(itemElement.getEnclosedElements()))
+            {
+                if (method.getSimpleName().contentEquals("valueOf") && method.getModifiers().contains(Modifier.STATIC) && method.getModifiers().contains(Modifier.PUBLIC)
+                    && method.getParameters().size() == 1 && processingEnv.getTypeUtils().isSameType(method.getParameters().get(0).asType(), string)
+                    && processingEnv.getTypeUtils().isSameType(method.getReturnType(), itemType))
+                {
+                    return itemName + ".valueOf(" + text + ")";
+                }
+            }
+
+            for (ExecutableElement constructor : ElementFilter.constructorsIn(itemElement.getEnclosedElements()))
+            {
+                if (constructor.getModifiers().contains(Modifier.PUBLIC) && !itemElement.getModifiers().contains(Modifier.ABSTRACT)
+                    && constructor.getParameters().size() == 1 && processingEnv.getTypeUtils().isSameType(constructor.getParameters().get(0).asType(), string))
+                {
+                    return "new " + itemName + "(" + text + ")";
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         *
+         * @return String expression to get the field, or null if there is no access
+         */
+        private String getter()
+        {
+            String fieldName = field.getSimpleName().toString();
+
+            if (!field.getModifiers().contains(Modifier.PRIVATE))
+            {
+                return fieldName;
+            }
+
+            String capitalised = Character.toUpperCase(fieldName.charAt(0)) + fieldName.substring(1);
+
+            for (ExecutableElement method : ElementFilter.methodsIn(field.getEnclosingElement().getEnclosedElements()))
+            {
+                String methodName = method.getSimpleName().toString();
+
+                if (method.getParameters().isEmpty() && !method.getModifiers().contains(Modifier.PRIVATE) && !method.getModifiers().contains(Modifier.STATIC)
+                    && processingEnv.getTypeUtils().isSameType(method.getReturnType(), type)
+                    && (methodName.equals("get" + capitalised) || (methodName.equals("is" + capitalised) && type.getKind() == TypeKind.BOOLEAN)))
+                {
+                    return methodName + "()";
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         *
+         * @return String name of the field or its setter, or null if the field cannot be set
+         */
+        private String setter()
+        {
+            String fieldName = field.getSimpleName().toString();
+
+            if (!field.getModifiers().contains(Modifier.PRIVATE) && !field.getModifiers().contains(Modifier.FINAL))
+            {
+                return fieldName;
+            }
+
+            String setterName = "set" + Character.toUpperCase(fieldName.charAt(0)) + fieldName.substring(1);
+
+            for (ExecutableElement method : ElementFilter.methodsIn(field.getEnclosingElement().getEnclosedElements()))
+            {
+                if (method.getSimpleName().contentEquals(setterName) && method.getParameters().size() == 1
+                    && !method.getModifiers().contains(Modifier.PRIVATE) && !method.getModifiers().contains(Modifier.STATIC)
+                    && processingEnv.getTypeUtils().isSameType(method.getParameters().get(0).asType(), type))
+                {
+                    return setterName;
+                }
+            }
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,1434 @@
+package com.kissthinker.xml;
+
+import static java.text.MessageFormat.format;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Pull parser of XML encoded as UTF-8 (or ASCII), reading straight from bytes i.e. a byte[] or {@link ByteBuffer} (which may be direct or a mapped file) without first decoding to chars.<br/>
+ * Each call of {@link #next()} moves to the next "event" (start of element, end of element, text or end of document), e.g.
+ * <pre>
+ * XMLPullParser parser = new XMLPullParser(buffer);
+ *
+ * for (int event = parser.next(); event != XMLPullParser.END_DOCUMENT; event = parser.next())
+ * {
+ *     if (event == XMLPullParser.START_ELEMENT &amp;&amp; "status".equals(parser.name()))
+ *     ...
+ * }
+ * </pre>
+ * Tokens are only positions within the bytes (see the offset and length getters), where Strings are only created on demand e.g. by {@link #text()},
+ * except for names of elements and attributes which come from a per parser cache of {@link Symbol}s, so that once warm, moving through XML allocates nothing.
+ * <p/>
+ * Entities (the predefined and character references) are decoded, as are CDATA sections, line endings are normalized and whitespace in attribute values is normalized to spaces, as with SAX,
+ * though a document type declaration is skipped (and so entities it declares are not known) and namespaces are not processed.
+ * Well-formedness is checked as SAX checks it for a single root element, end tags matching start tags, unique attributes, no < in attribute values, and known entities of allowed characters,
+ * whether or not the text or attribute in question is ever read (though the content passed over by {@link #skip()} is only checked once parsed).
+ * <p/>
+ * As a parser holds the state of its parse, one instance should not be used by more than one thread at a time.
+ * @author David Ainslie
+ *
+ */
+public final class XMLPullParser
+{
+    /** Event of the start of an element, where its name and attributes are available. */
+    public static final int START_ELEMENT = 1;
+
+    /** Event of the end of an element, where its name is available - an empty element e.g. &lt;name/&gt; has both a start and an end. */
+    public static final int END_ELEMENT = 2;
+
+    /** Event of text (or a CDATA section) within an element, which may only be some of the text between two tags e.g. text either side of a comment. */
+    public static final int TEXT = 3;
+
+    /** Event of the end of the XML. */
+    public static final int END_DOCUMENT = 4;
+
+    /** */
+    private static final Pattern ENCODING_PATTERN = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']+)[\"']");
+
+    /** */
+    private static final char REPLACEMENT = '\uFFFD';
+
+    /** */
+    private final ByteBuffer buffer;
+
+    /** Position of the next byte to read. */
+    private int position;
+
+    /** */
+    private final int limit;
+
+    /** */
+    private int event;
+
+    /** Number of elements started but not yet ended. */
+    private int depth;
+
+    /** Offset and length of the name of each element started but not yet ended. */
+    private int[] names = new int[32];
+
+    /** */
+    private int nameOffset;
+
+    /** */
+    private int nameLength;
+
+    /** Whether the current start of an element is of an empty element, whose end is the next event. */
+    private boolean emptyElement;
+
+    /** Whether the root element has been started, after which no other element may be started at depth 0. */
+    private boolean rooted;
+
+    /** */
+    private int attributeCount;
+
+    /** Offset and length of the name, and offset and length of the value, of each attribute of the current element. */
+    private int[] attributes = new int[32];
+
+    /** */
+    private int textOffset;
+
+    /** */
+    private int textLength;
+
+    /** Whether the current text is a CDATA section, which is not decoded. */
+    private boolean cdata;
+
+    /** Decoded text, reused for each decoding. */
+    private char[] chars = new char[256];
+
+    /** Open addressing (linear probing) table of the names read so far, by the hash of their bytes. */
+    private Symbol[] symbols = new Symbol[256];
+
+    /** */
+    private int symbolCount;
+
+    /** Attributes of the current element, as given to a {@link ContentHandler}. */
+    private PulledAttributes pulledAttributes;
+
+    /**
+     *
+     * @param bytes of XML
+     */
+    public XMLPullParser(byte[] bytes)
+    {
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     *
+     * @param buffer of XML from its position to its limit, which is read without changing its position
+     */
+    public XMLPullParser(ByteBuffer buffer)
+    {
+        super();
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+        this.position = buffer.position();
+
+        if (limit - position >= 3 && buffer.get(position) == (byte) 0xEF && buffer.get(position + 1) == (byte) 0xBB && buffer.get(position + 2) == (byte) 0xBF)
+        {
+            // Byte order mark
+            position += 3;
+        }
+    }
+
+    /**
+     * Move to the next event.
+     * @return int the event i.e. {@link #START_ELEMENT}, {@link #END_ELEMENT}, {@link #TEXT} or {@link #END_DOCUMENT}
+     * @throws IllegalArgumentException if the XML is not well formed, or is not encoded as UTF-8
+     */
+    public int next()
+    {
+        attributeCount = 0;
+
+        if (emptyElement)
+        {
+            emptyElement = false;
+            depth--;
+            return event = END_ELEMENT;
+        }
+
+        while (position < limit)
+        {
+            if (buffer.get(position) != '<')
+            {
+                int start = position;
+                position = end(position, (byte) '<');
+
+                if (depth > 0)
+                {
+                    return text(start, position, false);
+                }
+
+                if (!whitespace(start, position))
+                {
+                    throw error("Text outside of the root element", start);
+                }
+
+                continue;
+            }
+
+            switch (get(position + 1))
+            {
+                case '/':
+                    return endTag();
+
+                case '?':
+                    declaration();
+                    break;
+
+                case '!':
+                    if (startsWith("<![CDATA[", position))
+                    {
+                        int start = position + 9;
+                        int end = indexOf("]]>", start);
+                        position = end + 3;
+                        return text(start, end, true);
+                    }
+
+                    if (startsWith("<!--", position))
+                    {
+                        position = indexOf("-->", position + 4) + 3;
+                    }
+                    else
+                    {
+                        skipDocumentType();
+                    }
+
+                    break;
+
+                default:
+                    return startTag();
+            }
+        }
+
+        if (depth > 0)
+        {
+            throw error(format("Element {0} is not ended", symbol(names[2 * depth - 2], names[2 * depth - 1])), position);
+        }
+
+        if (!rooted)
+        {
+            throw error("No root element", position);
+        }
+
+        return event = END_DOCUMENT;
+    }
+
+    /**
+     * Skip the content of the element just started, i.e. move to the end of the element without any of the events within it, e.g. to parse the content later (if at all).<br/>
+     * The content is only scanned for tags, rather than decoded or checked, so skipping is much faster than moving through the events within the element.
+     * @return int {@link #END_ELEMENT} of the element
+     * @throws IllegalStateException if not at the start of an element
+     * @throws IllegalArgumentException if the element is not ended
+     */
+    public int skip()
+    {
+        if (event != START_ELEMENT)
+        {
+            throw new IllegalStateException("Not at the start of an element");
+        }
+
+        attributeCount = 0;
+
+        if (emptyElement)
+        {
+            return next();
+        }
+
+        for (int nested = 0; ; )
+        {
+            position = indexOf('<', position);
+
+            switch (get(position + 1))
+            {
+                case '/':
+                    if (nested-- == 0)
+                    {
+                        return endTag();
+                    }
+
+                    position = indexOf('>', position);
+                    break;
+
+                case '!':
+                    position = startsWith("<![CDATA[", position) ? indexOf("]]>", position + 9) : startsWith("<!--", position) ? indexOf("-->", position + 4) : indexOf('>', position);
+                    break;
+
+                case '?':
+                    position = indexOf("?>", position + 2);
+                    break;
+
+                default:
+                    // Start tag, where > may be within a (quoted) attribute value
+                    byte quote = 0;
+                    byte b;
+
+                    for (position++; (b = get(position)) != '>' || quote != 0; position++)
+                    {
+                        if (b == '"' || b == '\'')
+                        {
+                            quote = quote == 0 ? b : quote == b ? 0 : quote;
+                        }
+                    }
+
+                    if (buffer.get(position - 1) != '/')
+                    {
+                        nested++;
+                    }
+            }
+        }
+    }
+
+    /**
+     * Parse all (of the rest) of the XML, giving each event to the given handler as SAX would, i.e. as an alternative to parsing with a {@link javax.xml.parsers.SAXParser}.<br/>
+     * Names are given as qualified names, with empty local names and namespace URIs, as a SAX parser that is not namespace aware would.
+     * @param handler of the events
+     * @throws SAXException if the handler throws, or the XML is not well formed (or is not encoded as UTF-8)
+     */
+    public void parse(ContentHandler handler) throws SAXException
+    {
+        try
+        {
+            handler.startDocument();
+
+            for (int event = next(); event != END_DOCUMENT; event = next())
+            {
+                switch (event)
+                {
+                    case START_ELEMENT:
+                        handler.startElement("", "", name(), attributes());
+                        break;
+
+                    case END_ELEMENT:
+                        handler.endElement("", "", name());
+                        break;
+
+                    default:
+                        int length = decodeText();
+                        handler.characters(chars, 0, length);
+                }
+            }
+
+            handler.endDocument();
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new SAXException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     *
+     * @return int the current event
+     */
+    public int event()
+    {
+        return event;
+    }
+
+    /**
+     *
+     * @return int number of elements started but not yet ended, so the root element is at depth 1 (upon its start, and 0 upon its end)
+     */
+    public int depth()
+    {
+        return depth;
+    }
+
+    /**
+     *
+     * @return String name of the element just started or ended
+     */
+    public String name()
+    {
+        return symbol(nameOffset, nameLength).name;
+    }
+
+    /**
+     *
+     * @return int offset (within the bytes) of the name of the element just started or ended
+     */
+    public int nameOffset()
+    {
+        return nameOffset;
+    }
+
+    /**
+     *
+     * @return int length (in bytes) of the name of the element just started or ended
+     */
+    public int nameLength()
+    {
+        return nameLength;
+    }
+
+    /**
+     *
+     * @return int number of attributes of the element just started, which is 0 for any other event
+     */
+    public int attributeCount()
+    {
+        return attributeCount;
+    }
+
+    /**
+     *
+     * @param index of an attribute of the element just started
+     * @return String name of the attribute
+     */
+    public String attributeName(int index)
+    {
+        return symbol(attributes[4 * index], attributes[4 * index + 1]).name;
+    }
+
+    /**
+     *
+     * @param index of an attribute of the element just started
+     * @return int offset (within the bytes) of the name of the attribute
+     */
+    public int attributeNameOffset(int index)
+    {
+        return attributes[4 * index];
+    }
+
+    /**
+     *
+     * @param index of an attribute of the element just started
+     * @return int length (in bytes) of the name of the attribute
+     */
+    public int attributeNameLength(int index)
+    {
+        return attributes[4 * index + 1];
+    }
+
+    /**
+     *
+     * @param index of an attribute of the element just started
+     * @return String value of the attribute (decoded)
+     */
+    public String attributeValue(int index)
+    {
+        int offset = attributes[4 * index + 2];
+        return string(offset, attributes[4 * index + 3], true, true);
+    }
+
+    /**
+     *
+     * @param index of an attribute of the element just started
+     * @return int offset (within the bytes) of the value of the attribute (as is i.e. not decoded)
+     */
+    public int attributeValueOffset(int index)
+    {
+        return attributes[4 * index + 2];
+    }
+
+    /**
+     *
+     * @param index of an attribute of the element just started
+     * @return int length (in bytes) of the value of the attribute (as is i.e. not decoded)
+     */
+    public int attributeValueLength(int index)
+    {
+        return attributes[4 * index + 3];
+    }
+
+    /**
+     *
+     * @return String the current text (decoded)
+     */
+    public String text()
+    {
+        return string(textOffset, textLength, !cdata, false);
+    }
+
+    /**
+     *
+     * @return int offset (within the bytes) of the current text (as is i.e. not decoded)
+     */
+    public int textOffset()
+    {
+        return textOffset;
+    }
+
+    /**
+     *
+     * @return int length (in bytes) of the current text (as is i.e. not decoded)
+     */
+    public int textLength()
+    {
+        return textLength;
+    }
+
+    /**
+     *
+     * @return boolean true if the current text is a CDATA section, whose bytes are the text as is (other than line endings)
+     */
+    public boolean cdata()
+    {
+        return cdata;
+    }
+
+    /**
+     *
+     * @return boolean true if the current text is only whitespace e.g. indentation between tags
+     */
+    public boolean whitespace()
+    {
+        return !cdata && whitespace(textOffset, textOffset + textLength);
+    }
+
+    /**
+     *
+     * @return int offset (within the bytes) of the next byte to read e.g. the byte after the tag of the current element
+     */
+    public int position()
+    {
+        return position;
+    }
+
+    /**
+     *
+     * @return ByteBuffer of the XML, which offsets are within
+     */
+    public ByteBuffer buffer()
+    {
+        return buffer;
+    }
+
+    /**
+     *
+     * @return Attributes of the element just started, as given to a {@link ContentHandler}, which are only valid until the next event
+     */
+    Attributes attributes()
+    {
+        if (pulledAttributes == null)
+        {
+            pulledAttributes = new PulledAttributes();
+        }
+
+        return pulledAttributes;
+    }
+
+    /**
+     * Decode the given bytes, e.g. of a token kept from an earlier event.
+     * @param offset of the bytes
+     * @param length of the bytes
+     * @param entities true to decode entities i.e. unless the bytes are a CDATA section
+     * @param attribute true if the bytes are an attribute value
+     * @return String
+     */
+    String string(int offset, int length, boolean entities, boolean attribute)
+    {
+        // Decoded first, as decoding may replace the chars (with more)
+        int decoded = decode(offset, offset + length, entities, attribute);
+        return new String(chars, 0, decoded);
+    }
+
+    /**
+     *
+     * @param index
+     * @return byte at the given index, which must be before the end of the XML
+     */
+    private byte get(int index)
+    {
+        if (index >= limit)
+        {
+            throw error("Unexpected end of XML", index);
+        }
+
+        return buffer.get(index);
+    }
+
+    /**
+     * Read the start tag at the current position, including its attributes.
+     * @return int {@link #START_ELEMENT}
+     */
+    private int startTag()
+    {
+        if (depth == 0)
+        {
+            if (rooted)
+            {
+                throw error("More than one root element", position);
+            }
+
+            rooted = true;
+        }
+
+        nameOffset = position + 1;
+        position = nameEnd(nameOffset);
+        nameLength = position - nameOffset;
+
+        if (depth * 2 == names.length)
+        {
+            names = Arrays.copyOf(names, names.length * 2);
+        }
+
+        names[2 * depth] = nameOffset;
+        names[2 * depth + 1] = nameLength;
+        depth++;
+
+        while (true)
+        {
+            position = skipWhitespace(position);
+            byte b = get(position);
+
+            if (b == '>')
+            {
+                position++;
+                break;
+            }
+
+            if (b == '/')
+            {
+                if (get(position + 1) != '>')
+                {
+                    throw error("Expected />", position);
+                }
+
+                position += 2;
+                emptyElement = true;
+                break;
+            }
+
+            int attributeNameOffset = position;
+            position = nameEnd(position);
+            int attributeNameLength = position - attributeNameOffset;
+
+            for (int i = 0; i < attributeCount; i++)
+            {
+                if (attributes[4 * i + 1] == attributeNameLength && equals(attributes[4 * i], attributeNameOffset, attributeNameLength))
+                {
+                    throw error(format("Duplicate attribute {0}", string(attributeNameOffset, attributeNameLength, false, false)), attributeNameOffset);
+                }
+            }
+
+            position = skipWhitespace(position);
+
+            if (get(position) != '=')
+            {
+                throw error("Expected = after attribute name", position);
+            }
+
+            position = skipWhitespace(position + 1);
+            byte quote = get(position);
+
+            if (quote != '"' && quote != '\'')
+            {
+                throw error("Expected quoted attribute value", position);
+            }
+
+            int valueOffset = position + 1;
+            position = end(valueOffset, quote);
+
+            if (position == limit)
+            {
+                throw error("Attribute value is not ended", valueOffset);
+            }
+
+            if (attributeCount * 4 == attributes.length)
+            {
+                attributes = Arrays.copyOf(attributes, attributes.length * 2);
+            }
+
+            attributes[4 * attributeCount] = attributeNameOffset;
+            attributes[4 * attributeCount + 1] = attributeNameLength;
+            attributes[4 * attributeCount + 2] = valueOffset;
+            attributes[4 * attributeCount + 3] = position - valueOffset;
+            attributeCount++;
+            position++;
+        }
+
+        return event = START_ELEMENT;
+    }
+
+    /**
+     * Read the end tag at the current position, which must end the last element started.
+     * @return int {@link #END_ELEMENT}
+     */
+    private int endTag()
+    {
+        int offset = position + 2;
+        int length = nameEnd(offset) - offset;
+        position = skipWhitespace(offset + length);
+
+        if (get(position) != '>')
+        {
+            throw error("Expected > to end end tag", position);
+        }
+
+        position++;
+
+        if (depth == 0)
+        {
+            throw error("End tag without a start tag", offset);
+        }
+
+        depth--;
+        nameOffset = names[2 * depth];
+        nameLength = names[2 * depth + 1];
+
+        if (length != nameLength || !equals(offset, nameOffset, nameLength))
+        {
+            throw error(format("End tag does not match start tag of {0}", name()), offset);
+        }
+
+        return event = END_ELEMENT;
+    }
+
+    /**
+     *
+     * @param start offset of the text
+     * @param end offset after the text
+     * @param cdata true if the text is a CDATA section
+     * @return int {@link #TEXT}
+     */
+    private int text(int start, int end, boolean cdata)
+    {
+        textOffset = start;
+        textLength = end - start;
+        this.cdata = cdata;
+        return event = TEXT;
+    }
+
+    /**
+     * Skip the processing instruction at the current position, checking the encoding of an XML declaration.
+     */
+    private void declaration()
+    {
+        int start = position;
+        position = indexOf("?>", position + 2) + 2;
+
+        if (startsWith("<?xml ", start))
+        {
+            Matcher matcher = ENCODING_PATTERN.matcher(string(start, position - start, false, false));
+
+            if (matcher.find() && !"UTF-8".equalsIgnoreCase(matcher.group(1)) && !"US-ASCII".equalsIgnoreCase(matcher.group(1)))
+            {
+                throw error(format("Encoding {0} is not supported, only UTF-8", matcher.group(1)), start);
+            }
+        }
+    }
+
+    /**
+     * Skip the document type declaration at the current position, including any internal subset within [ and ].
+     */
+    private void skipDocumentType()
+    {
+        int brackets = 0;
+
+        for (position += 2;; position++)
+        {
+            byte b = get(position);
+
+            if (b == '[')
+            {
+                brackets++;
+            }
+            else if (b == ']')
+            {
+                brackets--;
+            }
+            else if (b == '>' && brackets == 0)
+            {
+                position++;
+                return;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param offset of a name
+     * @return int offset after the name i.e. of the first whitespace, /, >, or =
+     */
+    private int nameEnd(int offset)
+    {
+        int end = offset;
+
+        while (end < limit)
+        {
+            byte b = buffer.get(end);
+
+            if (b == '>' || b == '/' || b == '=' || b == ' ' || b == '\n' || b == '\t' || b == '\r')
+            {
+                break;
+            }
+
+            end++;
+        }
+
+        if (end == offset)
+        {
+            throw error("Expected a name", offset);
+        }
+
+        return end;
+    }
+
+    /**
+     *
+     * @param offset
+     * @return int offset of the first byte that is not whitespace, from the given offset
+     */
+    private int skipWhitespace(int offset)
+    {
+        while (offset < limit && whitespace(buffer.get(offset)))
+        {
+            offset++;
+        }
+
+        return offset;
+    }
+
+    /**
+     *
+     * @param start
+     * @param end
+     * @return boolean true if the bytes from the given start to the given end are all whitespace
+     */
+    private boolean whitespace(int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (!whitespace(buffer.get(i)))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     *
+     * @param b
+     * @return boolean true if the given byte is whitespace
+     */
+    private static boolean whitespace(byte b)
+    {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Find the end of the text or attribute value at the given offset, checking (without decoding) its entities on the way, so that malformed content fails when read rather than only when decoded.
+     * @param offset to start from
+     * @param end byte ending the text or attribute value i.e. < or the quote of the value
+     * @return int offset of the given end byte, or the end of the XML if not found
+     */
+    private int end(int offset, byte end)
+    {
+        while (offset < limit)
+        {
+            byte b = buffer.get(offset);
+
+            if (b == end)
+            {
+                break;
+            }
+
+            if (b == '<')
+            {
+                throw error("< in attribute value", offset);
+            }
+
+            if (b == '&')
+            {
+                int semicolon = indexOf(';', offset + 1);
+
+                if (semicolon == limit)
+                {
+                    throw error("Entity is not ended by ;", offset);
+                }
+
+                reference(offset + 1, semicolon);
+                offset = semicolon + 1;
+            }
+            else
+            {
+                offset++;
+            }
+        }
+
+        return offset;
+    }
+
+    /**
+     *
+     * @param b byte to find
+     * @param offset to start from
+     * @return int offset of the given byte, or the end of the XML if not found
+     */
+    private int indexOf(byte b, int offset)
+    {
+        while (offset < limit && buffer.get(offset) != b)
+        {
+            offset++;
+        }
+
+        return offset;
+    }
+
+    /**
+     *
+     * @param b byte to find
+     * @param offset to start from
+     * @return int offset of the given byte, or the end of the XML if not found
+     */
+    private int indexOf(char b, int offset)
+    {
+        return indexOf((byte) b, offset);
+    }
+
+    /**
+     *
+     * @param ascii to find
+     * @param offset to start from
+     * @return int offset of the given ascii
+     * @throws IllegalArgumentException if not found
+     */
+    private int indexOf(String ascii, int offset)
+    {
+        for (int i = indexOf(ascii.charAt(0), offset); i < limit; i = indexOf(ascii.charAt(0), i + 1))
+        {
+            if (startsWith(ascii, i))
+            {
+                return i;
+            }
+        }
+
+        throw error(format("Expected {0}", ascii), offset);
+    }
+
+    /**
+     *
+     * @param ascii
+     * @param offset
+     * @return boolean true if the bytes at the given offset are the given ascii
+     */
+    private boolean startsWith(String ascii, int offset)
+    {
+        if (offset + ascii.length() > limit)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < ascii.length(); i++)
+        {
+            if (buffer.get(offset + i) != ascii.charAt(i))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     *
+     * @param offset
+     * @param otherOffset
+     * @param length
+     * @return boolean true if the given length of bytes at the two given offsets are the same
+     */
+    private boolean equals(int offset, int otherOffset, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            if (buffer.get(offset + i) != buffer.get(otherOffset + i))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the symbol of the name of the given bytes, from the cache of this parser (so without decoding the bytes) once the name has been read before.
+     * @param offset of the name
+     * @param length of the name
+     * @return Symbol
+     */
+    Symbol symbol(int offset, int length)
+    {
+        int mask = symbols.length - 1;
+        int index = hash(offset, length) & mask;
+
+        for (Symbol symbol = symbols[index]; symbol != null; symbol = symbols[index = (index + 1) & mask])
+        {
+            if (symbol.bytes.length == length && equals(symbol.bytes, offset))
+            {
+                return symbol;
+            }
+        }
+
+        Symbol symbol = Symbol.of(string(offset, length, false, false));
+
+        if (symbol.bytes.length == length && equals(symbol.bytes, offset))
+        {
+            // Cached unless the name is malformed UTF-8, whose bytes would never match
+            symbols[index] = symbol;
+
+            if (++symbolCount * 2 > symbols.length)
+            {
+                rehash();
+            }
+        }
+
+        return symbol;
+    }
+
+    /**
+     * Double the size of the symbol table.
+     */
+    private void rehash()
+    {
+        Symbol[] symbols = new Symbol[this.symbols.length * 2];
+        int mask = symbols.length - 1;
+
+        for (Symbol symbol : this.symbols)
+        {
+            if (symbol != null)
+            {
+                int hash = 0;
+
+                for (byte b : symbol.bytes)
+                {
+                    hash = 31 * hash + b;
+                }
+
+                int index = hash & mask;
+
+                while (symbols[index] != null)
+                {
+                    index = (index + 1) & mask;
+                }
+
+                symbols[index] = symbol;
+            }
+        }
+
+        this.symbols = symbols;
+    }
+
+    /**
+     *
+     * @param offset
+     * @param length
+     * @return int hash of the given bytes
+     */
+    private int hash(int offset, int length)
+    {
+        int hash = 0;
+
+        for (int i = offset, end = offset + length; i < end; i++)
+        {
+            hash = 31 * hash + buffer.get(i);
+        }
+
+        return hash;
+    }
+
+    /**
+     *
+     * @param bytes
+     * @param offset
+     * @return boolean true if the given bytes are at the given offset
+     */
+    private boolean equals(byte[] bytes, int offset)
+    {
+        for (int i = 0; i < bytes.length; i++)
+        {
+            if (bytes[i] != buffer.get(offset + i))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Decode the current text into {@link #chars}.
+     * @return int number of chars decoded
+     */
+    private int decodeText()
+    {
+        return decode(textOffset, textOffset + textLength, !cdata, false);
+    }
+
+    /**
+     * Decode the given bytes from UTF-8 into {@link #chars}, where malformed bytes are decoded as U+FFFD in line with {@link String#String(byte[], java.nio.charset.Charset)}.
+     * @param start offset of the bytes
+     * @param end offset after the bytes
+     * @param entities true to decode entities
+     * @param attribute true if the bytes are an attribute value, in which whitespace is normalized to spaces
+     * @return int number of chars decoded
+     */
+    private int decode(int start, int end, boolean entities, boolean attribute)
+    {
+        if (chars.length < end - start)
+        {
+            // No more chars than bytes
+            chars = new char[Math.max(end - start, chars.length * 2)];
+        }
+
+        int count = 0;
+
+        for (int i = start; i < end;)
+        {
+            int b = buffer.get(i++);
+
+            if (b >= 0)
+            {
+                if (b == '&' && entities)
+                {
+                    int semicolon = indexOf(';', i);
+
+                    if (semicolon >= end)
+                    {
+                        throw error("Entity is not ended by ;", i - 1);
+                    }
+
+                    count = entity(i, semicolon, count);
+                    i = semicolon + 1;
+                }
+                else if (b == '\r')
+                {
+                    // Line endings of \r\n or \r are \n (and so a space within an attribute value)
+                    if (i < end && buffer.get(i) == '\n')
+                    {
+                        i++;
+                    }
+
+                    chars[count++] = attribute ? ' ' : '\n';
+                }
+                else if (attribute && (b == '\n' || b == '\t' || b == '\r'))
+                {
+                    chars[count++] = ' ';
+                }
+                else
+                {
+                    chars[count++] = (char) b;
+                }
+
+                continue;
+            }
+
+            int codePoint;
+            int continuations;
+
+            if ((b & 0xE0) == 0xC0)
+            {
+                codePoint = b & 0x1F;
+                continuations = 1;
+            }
+            else if ((b & 0xF0) == 0xE0)
+            {
+                codePoint = b & 0x0F;
+                continuations = 2;
+            }
+            else if ((b & 0xF8) == 0xF0)
+            {
+                codePoint = b & 0x07;
+                continuations = 3;
+            }
+            else
+            {
+                chars[count++] = REPLACEMENT;
+                continue;
+            }
+
+            if (i + continuations > end)
+            {
+                chars[count++] = REPLACEMENT;
+                continue;
+            }
+
+            boolean malformed = false;
+
+            for (int c = 0; c < continuations; c++)
+            {
+                int continuation = buffer.get(i + c);
+
+                if ((continuation & 0xC0) != 0x80)
+                {
+                    malformed = true;
+                    break;
+                }
+
+                codePoint = (codePoint << 6) | (continuation & 0x3F);
+            }
+
+            if (malformed)
+            {
+                chars[count++] = REPLACEMENT;
+                continue;
+            }
+
+            i += continuations;
+            count = codePoint(codePoint, count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Decode the entity of the given name into {@link #chars}.
+     * @param start offset of the entity's name i.e. after &
+     * @param end offset of the ; ending the entity
+     * @param count number of chars decoded so far
+     * @return int number of chars decoded including the entity
+     */
+    private int entity(int start, int end, int count)
+    {
+        return codePoint(reference(start, end), count);
+    }
+
+    /**
+     * Get the character of the entity of the given name, which must be predefined or a reference to a character allowed in XML.
+     * @param start offset of the entity's name i.e. after &
+     * @param end offset of the ; ending the entity
+     * @return int code point of the entity
+     */
+    private int reference(int start, int end)
+    {
+        if (startsWith("lt;", start))
+        {
+            return '<';
+        }
+        else if (startsWith("gt;", start))
+        {
+            return '>';
+        }
+        else if (startsWith("amp;", start))
+        {
+            return '&';
+        }
+        else if (startsWith("quot;", start))
+        {
+            return '"';
+        }
+        else if (startsWith("apos;", start))
+        {
+            return '\'';
+        }
+        else if (buffer.get(start) == '#' && end > start + 1)
+        {
+            boolean hex = buffer.get(start + 1) == 'x';
+            int codePoint = 0;
+
+            for (int i = hex ? start + 2 : start + 1; i < end; i++)
+            {
+                int digit = Character.digit(buffer.get(i), hex ? 16 : 10);
+
+                if (digit == -1 || codePoint > Character.MAX_CODE_POINT)
+                {
+                    throw error("Invalid character reference", start - 1);
+                }
+
+                codePoint = codePoint * (hex ? 16 : 10) + digit;
+            }
+
+            if (!(codePoint == 0x9 || codePoint == 0xA || codePoint == 0xD || (codePoint >= 0x20 && codePoint <= 0xD7FF)
+                  || (codePoint >= 0xE000 && codePoint <= 0xFFFD) || (codePoint >= 0x10000 && codePoint <= Character.MAX_CODE_POINT)))
+            {
+                // Not a Char of the XML specification
+                throw error("Invalid character reference", start - 1);
+            }
+
+            return codePoint;
+        }
+        else
+        {
+            throw error(format("Unknown entity {0}", string(start, end - start, false, false)), start - 1);
+        }
+    }
+
+    /**
+     * Add the given code point to {@link #chars}, as a surrogate pair when supplementary.
+     * @param codePoint
+     * @param count number of chars decoded so far
+     * @return int number of chars decoded including the given code point
+     */
+    private int codePoint(int codePoint, int count)
+    {
+        if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+        {
+            chars[count++] = (char) codePoint;
+        }
+        else
+        {
+            chars[count++] = Character.highSurrogate(codePoint);
+            chars[count++] = Character.lowSurrogate(codePoint);
+        }
+
+        return count;
+    }
+
+    /**
+     *
+     * @param message
+     * @param offset of the error
+     * @return IllegalArgumentException to throw
+     */
+    private IllegalArgumentException error(String message, int offset)
+    {
+        return new IllegalArgumentException(format("{0} at byte {1}", message, String.valueOf(offset)));
+    }
+
+    /**
+     * Attributes of the current element, as given to a {@link ContentHandler} by {@link XMLPullParser#parse(ContentHandler)}, where values are only decoded upon request.
+     * @author David Ainslie
+     *
+     */
+    private final class PulledAttributes implements Attributes
+    {
+        /**
+         *
+         * @see org.xml.sax.Attributes#getLength()
+         */
+        @Override
+        public int getLength()
+        {
+            return attributeCount;
+        }
+
+        /**
+         *
+         * @see org.xml.sax.Attributes#getURI(int)
+         */
+        @Override
+        public String getURI(int index)
+        {
+            return index < attributeCount ? "" : null;
+        }
+
+        /**
+         *
+         * @see org.xml.sax.Attributes#getLocalName(int)
+         */
+        @Override
+        public String getLocalName(int index)
+        {
+            return index < attributeCount ? "" : null;
+        }
+
+        /**
+         *
+         * @see org.xml.sax.Attributes#getQName(int)
+         */
+        @Override
+        public String getQName(int index)
+        {
+            return index < attributeCount ? attributeName(index) : null;
+        }
+
+        /**
+         *
+         * @see org.xml.sax.Attributes#getType(int)
+         */
+        @Override
+        public String getType(int index)
+        {
+            return index < attributeCount ? "CDATA" : null;
+        }
+
+        /**
+         *
+         * @see org.xml.sax.Attributes#getValue(int)
+         */
+        @Override
+        public String getValue(int index)
+        {
+            return index < attributeCount ? attributeValue(index) : null;
+        }
+
+        /**
+         *
+         * @see org.xml.sax.Attributes#getIndex(java.lang.String, java.lang.String)
+         */
+        @Override
+        public int getIndex(String uri, String localName)
+        {
+            return -1;
+        }
+
+        /**
+         *
+         * @see org.xml.sax.Attributes#getIndex(java.lang.String)
+         */
+        @Override
+        public int getIndex(String qName)
+        {
+            byte[] bytes = null;
+
+            for (int i = 0; i < attributeCount; i++)
+            {
+                if (bytes == null)
+                {
+                    Symbol symbol = Symbol.find(qName);
+                    bytes = symbol == null ? qName.getBytes(StandardCharsets.UTF_8) : symbol.bytes;
+                }
+
+                if (attributes[4 * i + 1] == bytes.length && XMLPullParser.this.equals(bytes, attributes[4 * i]))
+                {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        /**
+         *
+         * @see org.xml.sax.Attributes#getType(java.lang.String, java.lang.String)
+         */
+        @Override
+        public String getType(String uri, String localName)
+        {
+            return null;
+        }
+
+        /**
+         *
+         * @see org.xml.sax.Attributes#getType(java.lang.String)
+         */
+        @Override
+        public String getType(String qName)
+        {
+            return getIndex(qName) == -1 ? null : "CDATA";
+        }
+
+        /**
+         *
+         * @see org.xml.sax.Attributes#getValue(java.lang.String, java.lang.String)
+         */
+        @Override
+        public String getValue(String uri, String localName)
+        {
+            return null;
+        }
+
+        /**
+         *
+         * @see org.xml.sax.Attributes#getValue(java.lang.String)
+         */
+        @Override
+        public String getValue(String qName)
+        {
+            int index = getIndex(qName);
+            return index == -1 ? null : attributeValue(index);
+        }
+    }
+}
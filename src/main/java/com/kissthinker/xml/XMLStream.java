@@ -0,0 +1,373 @@
+package com.kissthinker.xml;
+
+import static java.text.MessageFormat.format;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.kissthinker.xml.XML.Format;
+
+/**
+ * Streaming alternative to building an {@link XML} - the same fluent API (DSL) but each node is written as soon as it can no longer change,
+ * instead of every node being retained until written.<br/>
+ * Memory is therefore proportional to the depth of the XML (the names of currently open nodes) rather than the size of the XML, e.g.
+ * <pre>
+ * XMLStream.create(writer, "order").attribute("id", 2000)
+ *     .node("status", "ACTIVE").nodeEnd()
+ *     .node("locations")
+ *         .node("location").attribute("name", "UK").nodeEnd()
+ *         .xmlEnd();
+ * </pre>
+ * writes exactly what the equivalent {@link XML} would write.<br/>
+ * As a node's start tag and text are written once its first child is created, {@link #text(String)} and {@link #attribute(String, Object)}
+ * must be called on a node before {@link #node(String)}.
+ * <p/>
+ * @author David Ainslie
+ *
+ */
+public final class XMLStream
+{
+    /** */
+    private static final char QUOTE = '"';
+
+    /** */
+    private final Appendable appendable;
+
+    /** Only set when writing to an {@link OutputStream}. */
+    private final ByteChannelAppendable byteChannelAppendable;
+
+    /** */
+    private final Format format;
+
+    /** Names of currently open nodes, indexed by depth. */
+    private Symbol[] names = new Symbol[16];
+
+    /** Depth of the current node, which is -1 once the root has ended. */
+    private int depth = -1;
+
+    /** Whether the start tag of the current node is yet to be written (and so can still change). */
+    private boolean pending;
+
+    /** Names of the attributes of the current node, while pending. */
+    private final List<Symbol> attributeNames = new ArrayList<>();
+
+    /** Values of the attributes of the current node, while pending. */
+    private final List<String> attributeValues = new ArrayList<>();
+
+    /** Text of the current node, while pending. */
+    private String text;
+
+    /**
+     * Stream XML with the given root node to the given appendable e.g. a {@link java.io.Writer}, in the given format.
+     * @param appendable to write to
+     * @param format of the XML e.g. {@link Format#COMPACT}
+     * @param name of the root node
+     * @return XMLStream
+     */
+    public static XMLStream create(Appendable appendable, Format format, String name)
+    {
+        return new XMLStream(appendable, null, format).push(name);
+    }
+
+    /**
+     * Stream "pretty" XML with the given root node to the given appendable e.g. a {@link java.io.Writer}.
+     * @param appendable to write to
+     * @param name of the root node
+     * @return XMLStream
+     */
+    public static XMLStream create(Appendable appendable, String name)
+    {
+        return create(appendable, Format.PRETTY, name);
+    }
+
+    /**
+     * Stream XML with the given root node to the given output stream, encoded as UTF-8 (in chunks of {@link XML#BUFFER_SIZE}), in the given format.
+     * @param outputStream to write to
+     * @param format of the XML e.g. {@link Format#COMPACT}
+     * @param name of the root node
+     * @return XMLStream
+     */
+    public static XMLStream create(OutputStream outputStream, Format format, String name)
+    {
+        ByteChannelAppendable byteChannelAppendable = new ByteChannelAppendable(Channels.newChannel(outputStream), ByteBuffer.allocate(XML.BUFFER_SIZE));
+        return new XMLStream(byteChannelAppendable, byteChannelAppendable, format).push(name);
+    }
+
+    /**
+     * Create a node with the given name, as a child of the current node.<br/>
+     * The current node's start tag (and text) is written, as it can no longer change.
+     * @param name of the XML node
+     * @return XMLStream this object for a fluent API, where the new node is now the current node
+     * @throws IOException if the current node fails to be written
+     */
+    public XMLStream node(String name) throws IOException
+    {
+        if (depth == -1)
+        {
+            throw new IllegalStateException(format("Cannot create node {0} as the XML has ended", name));
+        }
+
+        if (pending)
+        {
+            writeStart(false);
+        }
+
+        return push(name);
+    }
+
+    /**
+     * Create a node with the given name and include the node text.
+     * @see #node(String)
+     * @param name of the XML node
+     * @param text to include within the node
+     * @return XMLStream this object for a fluent API, where the new node is now the current node
+     * @throws IOException if the current node fails to be written
+     */
+    public XMLStream node(String name, String text) throws IOException
+    {
+        return node(name).text(text);
+    }
+
+    /**
+     * Set text of the current node.
+     * @param text
+     * @return XMLStream this object for fluent API
+     * @throws IllegalStateException if the current node already has a child (and so has been written)
+     */
+    public XMLStream text(String text)
+    {
+        checkPending("text", "");
+        this.text = text;
+        return this;
+    }
+
+    /**
+     * Add an attibute to the current node.<br/>
+     * The given name may include "&" to separate multiple attribute names where each will be set on the current node with the given value.
+     * @param name of the attribute which can be multiple names delimited by "&"
+     * @param value of the attribute - as this is an Object and XML deals with strings, the given value should have an appropriate "toString()"
+     * @return XMLStream this object for a fluent API
+     * @throws IllegalStateException if the current node already has a child (and so has been written)
+     */
+    public XMLStream attribute(String name, Object value)
+    {
+        checkPending("attribute ", name);
+        String valueString = value == null ? "" : value.toString();
+
+        if (name.indexOf("&") == -1)
+        {
+            addAttribute(Symbol.of(name), valueString);
+        }
+        else
+        {
+            for (String andName : name.split("&"))
+            {
+                addAttribute(Symbol.of(andName.trim()), valueString);
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * End (and write) the current node.<br/>
+     * Ending the root node ends the XML, as with {@link #xmlEnd()}.
+     * @return XMLStream this object for a fluent API, where the parent node is now the current node
+     * @throws IOException if the current node fails to be written
+     */
+    public XMLStream nodeEnd() throws IOException
+    {
+        if (depth == -1)
+        {
+            return this;
+        }
+
+        boolean empty = pending && text == null;
+
+        if (pending)
+        {
+            writeStart(empty);
+        }
+
+        if (!empty)
+        {
+            appendable.append(format.indentation(depth)).append("</");
+            append(names[depth]);
+            appendable.append('>').append(format.newLine());
+        }
+
+        if (depth-- == 0)
+        {
+            end();
+        }
+
+        return this;
+    }
+
+    /**
+     * End the XML i.e close off the root node (including the closing off of any unclosed child nodes), flushing everything written.
+     * @return XMLStream this object
+     * @throws IOException if any node fails to be written
+     */
+    public XMLStream xmlEnd() throws IOException
+    {
+        while (depth >= 0)
+        {
+            nodeEnd();
+        }
+
+        return this;
+    }
+
+    /**
+     * Instantiate
+     * @param appendable to write to
+     * @param byteChannelAppendable which is the given appendable when writing bytes, otherwise null
+     * @param format of the XML
+     */
+    private XMLStream(Appendable appendable, ByteChannelAppendable byteChannelAppendable, Format format)
+    {
+        super();
+        this.appendable = appendable;
+        this.byteChannelAppendable = byteChannelAppendable;
+        this.format = format;
+    }
+
+    /**
+     * The given (named) node is now the current node, where its start tag is pending.
+     * @param name of the node
+     * @return XMLStream this object
+     */
+    private XMLStream push(String name)
+    {
+        depth++;
+
+        if (depth == names.length)
+        {
+            names = Arrays.copyOf(names, depth * 2);
+        }
+
+        names[depth] = Symbol.of(name);
+        pending = true;
+        attributeNames.clear();
+        attributeValues.clear();
+        text = null;
+
+        return this;
+    }
+
+    /**
+     * Add an attribute to the current node, unless the node already has an attribute of the same name, in which case its value is replaced (in the same position), as with {@link XML}.
+     * @param name of the attribute
+     * @param value of the attribute
+     */
+    private void addAttribute(Symbol name, String value)
+    {
+        int position = attributeNames.indexOf(name);
+
+        if (position == -1)
+        {
+            attributeNames.add(name);
+            attributeValues.add(value);
+        }
+        else
+        {
+            attributeValues.set(position, value);
+        }
+    }
+
+    /**
+     *
+     * @param change being made to the current node
+     * @param name of the attribute being changed, or "" for text
+     */
+    private void checkPending(String change, String name)
+    {
+        if (!pending)
+        {
+            throw new IllegalStateException(format("Cannot set {0}{1} of node {2} as it has already been written",
+                                                   change, name, depth == -1 ? names[0] : names[depth]));
+        }
+    }
+
+    /**
+     * Write the start tag (and text) of the current node.
+     * @param empty true if the current node has no text and no children i.e. is written as <name/>
+     * @throws IOException
+     */
+    private void writeStart(boolean empty) throws IOException
+    {
+        String newLine = format.newLine();
+        String indent = format.indentation(depth);
+
+        appendable.append(indent).append('<');
+        append(names[depth]);
+
+        for (int i = 0, size = attributeNames.size(); i < size; i++)
+        {
+            appendable.append(' ');
+            append(attributeNames.get(i));
+            appendable.append('=').append(QUOTE);
+            XML.escape(appendable, attributeValues.get(i), true);
+            appendable.append(QUOTE);
+        }
+
+        pending = false;
+
+        if (empty)
+        {
+            appendable.append("/>").append(newLine);
+            return;
+        }
+
+        appendable.append('>').append(newLine);
+
+        if (text != null && !"".equals(text))
+        {
+            appendable.append(format.indentation(depth + 1));
+            XML.escape(appendable, text, false);
+            appendable.append(newLine);
+        }
+
+        text = null;
+    }
+
+    /**
+     * Append the given name, as its (already encoded) bytes when writing bytes.
+     * @param symbol of the name
+     * @throws IOException
+     */
+    private void append(Symbol symbol) throws IOException
+    {
+        if (byteChannelAppendable != null)
+        {
+            byteChannelAppendable.write(symbol.bytes);
+        }
+        else
+        {
+            appendable.append(symbol.name);
+        }
+    }
+
+    /**
+     * The root has ended.
+     * @throws IOException
+     */
+    private void end() throws IOException
+    {
+        if (byteChannelAppendable != null)
+        {
+            byteChannelAppendable.finish();
+        }
+        else if (appendable instanceof Flushable)
+        {
+            ((Flushable) appendable).flush();
+        }
+    }
+}
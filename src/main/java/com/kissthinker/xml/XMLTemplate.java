@@ -0,0 +1,308 @@
+package com.kissthinker.xml;
+
+import static java.text.MessageFormat.format;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.kissthinker.xml.XML.Format;
+
+/**
+ * An XML "shape" compiled once, from {@link XML} built with the usual DSL, to then write any number of XML messages that only differ by some values.<br/>
+ * Text and attribute values of the form ${name} are named slots, e.g.
+ * <pre>
+ * XMLTemplate template = XMLTemplate.compile(XML.create("order").attribute("id", "${id}")
+ *                                                .node("status", "${status}")
+ *                                                .xmlEnd(), Format.COMPACT);
+ *
+ * template.writeTo(buffer, "2000", "ACTIVE");
+ * </pre>
+ * where values are given in the order of {@link #names()} (the order each slot first appears in the XML).<br/>
+ * Writing a message allocates no nodes and renders nothing but the (escaped) values, as everything else was rendered (and encoded as UTF-8) upon compilation.
+ * A slot may appear more than once, where each is written with the same value.
+ * <p/>
+ * A template is immutable and so can be used by any number of threads.
+ * @author David Ainslie
+ *
+ */
+public final class XMLTemplate
+{
+    /** */
+    private static final Pattern SLOT = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    /** Names of the slots, in order of first appearance. */
+    private final List<String> names;
+
+    /** Constant parts of the XML, where there is a slot between each consecutive pair. */
+    private final String[] segments;
+
+    /** {@link #segments} encoded as UTF-8. */
+    private final byte[][] segmentBytes;
+
+    /** Index (into {@link #names}) of the slot following each segment (except the last). */
+    private final int[] slots;
+
+    /** Whether the slot following each segment (except the last) is an attribute value rather than text. */
+    private final boolean[] attributeSlots;
+
+    /**
+     * Compile the given XML in the given {@link Format}, where text and attribute values of the form ${name} are slots to be filled upon writing.
+     * @param xml the "shape" of the XML to write
+     * @param format of the written XML e.g. {@link Format#COMPACT}
+     * @return XMLTemplate
+     * @throws IllegalArgumentException if a slot is within a name, or is not wholly within one text or attribute value
+     */
+    public static XMLTemplate compile(XML xml, Format format)
+    {
+        return new XMLTemplate(xml.toString(format), xml.slots(SLOT));
+    }
+
+    /**
+     * Compile the given XML in {@link Format#PRETTY}.
+     * @see #compile(XML, Format)
+     * @param xml the "shape" of the XML to write
+     * @return XMLTemplate
+     */
+    public static XMLTemplate compile(XML xml)
+    {
+        return compile(xml, Format.PRETTY);
+    }
+
+    /**
+     *
+     * @return List<String> names of the slots, which is also the order of values to write
+     */
+    public List<String> names()
+    {
+        return names;
+    }
+
+    /**
+     *
+     * @param name of a slot
+     * @return int index of the named slot (i.e. of its value when writing), or -1 if there is no such slot
+     */
+    public int indexOf(String name)
+    {
+        return names.indexOf(name);
+    }
+
+    /**
+     * Write an XML message to the given {@link Appendable}, with the slots filled by the given values.
+     * @param appendable to write to
+     * @param values of the slots, in the order of {@link #names()} - a null value is written as an empty string
+     * @throws IOException if the given appendable fails to be written to
+     * @throws IllegalArgumentException if the number of values does not match the number of slots
+     */
+    public void writeTo(Appendable appendable, String... values) throws IOException
+    {
+        checkValues(values);
+
+        for (int i = 0; i < slots.length; i++)
+        {
+            appendable.append(segments[i]);
+            writeValue(appendable, values, i);
+        }
+
+        appendable.append(segments[slots.length]);
+    }
+
+    /**
+     * Write an XML message as UTF-8 via the given buffer to the given channel, with the slots filled by the given values.
+     * @param channel to write to
+     * @param buffer to encode into, which is flushed to the channel whenever full
+     * @param values of the slots, in the order of {@link #names()} - a null value is written as an empty string
+     * @throws IOException if the given channel fails to be written to
+     * @throws IllegalArgumentException if the number of values does not match the number of slots
+     */
+    public void writeTo(WritableByteChannel channel, ByteBuffer buffer, String... values) throws IOException
+    {
+        ByteChannelAppendable byteChannelAppendable = new ByteChannelAppendable(channel, buffer);
+        write(byteChannelAppendable, values);
+        byteChannelAppendable.finish();
+    }
+
+    /**
+     * Write an XML message as UTF-8 into the given buffer, with the slots filled by the given values.
+     * @param buffer to write into, from its current position
+     * @param values of the slots, in the order of {@link #names()} - a null value is written as an empty string
+     * @throws BufferOverflowException if the buffer is too small for the message
+     * @throws IllegalArgumentException if the number of values does not match the number of slots
+     */
+    public void writeTo(ByteBuffer buffer, String... values)
+    {
+        ByteChannelAppendable byteChannelAppendable = new ByteChannelAppendable(null, buffer);
+
+        try
+        {
+            write(byteChannelAppendable, values);
+            byteChannelAppendable.finish();
+        }
+        catch (IOException e)
+        {
+            // Without a channel there is nothing to throw an IOException
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * An XML message as a string, with the slots filled by the given values.
+     * @param values of the slots, in the order of {@link #names()}
+     * @return String
+     */
+    public String toString(String... values)
+    {
+        StringBuilder stringBuilder = new StringBuilder();
+
+        try
+        {
+            writeTo(stringBuilder, values);
+        }
+        catch (IOException e)
+        {
+            // A StringBuilder never throws an IOException
+            throw new IllegalStateException(e);
+        }
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder stringBuilder = new StringBuilder();
+
+        for (int i = 0; i < slots.length; i++)
+        {
+            stringBuilder.append(segments[i]).append("${").append(names.get(slots[i])).append('}');
+        }
+
+        return stringBuilder.append(segments[slots.length]).toString();
+    }
+
+    /**
+     *
+     * @param xml rendered, including slots
+     * @param kinds of the slots (in order) as found within the XML before rendering, true for an attribute value, false for text
+     * @throws IllegalArgumentException if the slots rendered are not those found before rendering
+     */
+    private XMLTemplate(String xml, List<Boolean> kinds)
+    {
+        super();
+
+        List<String> names = new ArrayList<>();
+        List<String> segments = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        List<Boolean> attributeSlots = new ArrayList<>();
+
+        Matcher matcher = SLOT.matcher(xml);
+        int start = 0;
+
+        while (matcher.find())
+        {
+            String name = matcher.group(1);
+            int slot = names.indexOf(name);
+
+            if (slot == -1)
+            {
+                slot = names.size();
+                names.add(name);
+            }
+
+            if (slots.size() == kinds.size())
+            {
+                throw new IllegalArgumentException(format("Slot {0} is not wholly within one text or attribute value", matcher.group()));
+            }
+
+            segments.add(xml.substring(start, matcher.start()));
+            // As found before rendering, rather than guessed from the rendering (where e.g. an attribute value may have a ">" before the slot)
+            attributeSlots.add(kinds.get(slots.size()));
+            slots.add(slot);
+            start = matcher.end();
+        }
+
+        if (slots.size() != kinds.size())
+        {
+            throw new IllegalArgumentException(format("{0} slots are not wholly within one text or attribute value", kinds.size() - slots.size()));
+        }
+
+        segments.add(xml.substring(start));
+
+        this.names = Collections.unmodifiableList(names);
+        this.segments = segments.toArray(new String[segments.size()]);
+        this.segmentBytes = new byte[this.segments.length][];
+        this.slots = new int[slots.size()];
+        this.attributeSlots = new boolean[slots.size()];
+
+        for (int i = 0; i < this.segments.length; i++)
+        {
+            segmentBytes[i] = this.segments[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        for (int i = 0; i < this.slots.length; i++)
+        {
+            this.slots[i] = slots.get(i);
+            this.attributeSlots[i] = attributeSlots.get(i);
+        }
+    }
+
+    /**
+     *
+     * @param byteChannelAppendable to write to
+     * @param values of the slots
+     * @throws IOException
+     */
+    private void write(ByteChannelAppendable byteChannelAppendable, String... values) throws IOException
+    {
+        checkValues(values);
+
+        for (int i = 0; i < slots.length; i++)
+        {
+            byteChannelAppendable.write(segmentBytes[i]);
+            writeValue(byteChannelAppendable, values, i);
+        }
+
+        byteChannelAppendable.write(segmentBytes[slots.length]);
+    }
+
+    /**
+     *
+     * @param appendable to write to
+     * @param values of the slots
+     * @param i index of the segment preceding the slot to write
+     * @throws IOException
+     */
+    private void writeValue(Appendable appendable, String[] values, int i) throws IOException
+    {
+        String value = values[slots[i]];
+
+        if (value != null)
+        {
+            XML.escape(appendable, value, attributeSlots[i]);
+        }
+    }
+
+    /**
+     *
+     * @param values of the slots
+     */
+    private void checkValues(String[] values)
+    {
+        if (values.length != names.size())
+        {
+            throw new IllegalArgumentException(format("Template has {0} slots {1} but was given {2} values", names.size(), names, values.length));
+        }
+    }
+}
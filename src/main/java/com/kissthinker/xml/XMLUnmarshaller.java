@@ -0,0 +1,336 @@
+package com.kissthinker.xml;
+
+import static java.text.MessageFormat.format;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.kissthinker.text.StringUtil;
+
+/**
+ * Reads XML into objects of a class marked by {@link XMLElement}, as SAX events arrive i.e. without reflection and without first converting to a map (as {@link XML#toMap(InputStream)}).<br/>
+ * Each unmarshaller is generated (by {@link XMLProcessor}) upon compilation of its class, named after the class e.g. OrderXMLUnmarshaller for Order, and so can be instantiated directly, or looked up:
+ * <pre>
+ * Order order = XMLUnmarshaller.of(Order.class).unmarshal(inputStream);
+ * </pre>
+ * Attributes and child nodes are bound to the fields marked as such, where anything else within the XML is ignored.
+ * <p/>
+ * As a SAX handler, an unmarshaller holds the state of the current parse, so (as with any handler) one instance should not be used by more than one thread at a time.
+ * @author David Ainslie
+ *
+ * @param <T> the type of object to read
+ */
+public abstract class XMLUnmarshaller<T> extends DefaultHandler
+{
+    /** Name appended to the name of a class (marked by {@link XMLElement}) to give the name of its generated unmarshaller. */
+    static final String SUFFIX = "XMLUnmarshaller";
+
+    /** */
+    private static final Logger LOGGER = LoggerFactory.getLogger(XMLUnmarshaller.class);
+
+    /** Objects being read, from the root down to the current object. */
+    private Object[] objects = new Object[8];
+
+    /** Unmarshaller of each object being read. */
+    private XMLUnmarshaller<?>[] unmarshallers = new XMLUnmarshaller<?>[8];
+
+    /** Depth of the current object, which is -1 before the root. */
+    private int depth = -1;
+
+    /** Name of the child node (of the current object) whose text is being read, otherwise null. */
+    private String node;
+
+    /** Text of {@link #node}, as a parser may deliver text in many chunks. */
+    private final StringBuilder characters = new StringBuilder();
+
+    /** Number of nested nodes being skipped, as they are not bound to any field. */
+    private int skipped;
+
+    /** */
+    private T result;
+
+    /** Parser of this unmarshaller, created upon first use and then reused, as creating a parser can cost more than a (small) parse. */
+    private SAXParser saxParser;
+
+    /**
+     * Instantiate the generated unmarshaller of the given class, where the unmarshaller is found by name.
+     * @param type a class marked by {@link XMLElement}
+     * @return XMLUnmarshaller<T>
+     * @throws IllegalArgumentException if there is no unmarshaller for the given class
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> XMLUnmarshaller<T> of(Class<T> type)
+    {
+        return XMLMarshaller.generated(type, SUFFIX, XMLUnmarshaller.class);
+    }
+
+    /**
+     * Read an object from the XML of the given {@link InputStream}.
+     * @param xmlInputStream
+     * @return T or null if the XML fails to be parsed
+     */
+    public T unmarshal(InputStream xmlInputStream)
+    {
+        try
+        {
+            LOGGER.debug("Unmarshalling of xml from input stream {}", xmlInputStream);
+
+            if (saxParser == null)
+            {
+                saxParser = SAXParserFactory.newInstance().newSAXParser();
+            }
+
+            saxParser.parse(new InputSource(xmlInputStream), this);
+
+            return result();
+        }
+        catch (Exception e)
+        {
+            LOGGER.error(format("Failed to unmarshal xml from input stream {0}", xmlInputStream), e);
+            saxParser = null;
+            return null;
+        }
+    }
+
+    /**
+     * Read an object from the given XML.
+     * @param xml
+     * @return T or null if the XML fails to be parsed
+     */
+    public T unmarshal(String xml)
+    {
+        return unmarshal(StringUtil.toInputStream(xml));
+    }
+
+    /**
+     *
+     * @return T the object read by the last parse (when this unmarshaller was the parse's handler)
+     */
+    public T result()
+    {
+        return result;
+    }
+
+    /**
+     *
+     * @see org.xml.sax.helpers.DefaultHandler#startDocument()
+     */
+    @Override
+    public void startDocument()
+    {
+        depth = -1;
+        node = null;
+        skipped = 0;
+        result = null;
+        characters.setLength(0);
+    }
+
+    /**
+     *
+     * @see org.xml.sax.helpers.DefaultHandler#startElement(java.lang.String, java.lang.String, java.lang.String, org.xml.sax.Attributes)
+     */
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException
+    {
+        if (skipped > 0 || node != null)
+        {
+            // Within a node that is not bound, or within (text) node that should not have children
+            skipped++;
+            return;
+        }
+
+        XMLUnmarshaller<?> unmarshaller = depth == -1 ? this : unmarshallers[depth].unmarshaller(qName);
+
+        if (unmarshaller == null)
+        {
+            node = qName;
+            return;
+        }
+
+        push(unmarshaller, qName, attributes);
+    }
+
+    /**
+     *
+     * @see org.xml.sax.helpers.DefaultHandler#endElement(java.lang.String, java.lang.String, java.lang.String)
+     */
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException
+    {
+        if (skipped > 0)
+        {
+            skipped--;
+            return;
+        }
+
+        if (node != null)
+        {
+            String text = characters.toString().trim();
+            characters.setLength(0);
+            node = null;
+
+            try
+            {
+                bind(unmarshallers[depth]).text(objects[depth], qName, text);
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new SAXException(format("Failed to read node {0} with text \"{1}\"", qName, text), e);
+            }
+
+            return;
+        }
+
+        Object object = objects[depth];
+        objects[depth] = null;
+        unmarshallers[depth] = null;
+        depth--;
+
+        if (depth == -1)
+        {
+            result = cast(object);
+        }
+        else
+        {
+            bind(unmarshallers[depth]).child(objects[depth], qName, object);
+        }
+    }
+
+    /**
+     *
+     * @see org.xml.sax.helpers.DefaultHandler#characters(char[], int, int)
+     */
+    @Override
+    public void characters(char[] ch, int start, int length)
+    {
+        if (node != null && skipped == 0)
+        {
+            characters.append(ch, start, length);
+        }
+    }
+
+    /**
+     * Instantiate a new (empty) object to read into.
+     * @return T
+     */
+    protected abstract T create();
+
+    /**
+     * Read the given attributes into the given object.
+     * @param object to read into
+     * @param attributes of the object's node
+     * @throws IllegalArgumentException if an attribute value cannot be converted to its field's type
+     */
+    protected abstract void attributes(T object, Attributes attributes);
+
+    /**
+     *
+     * @param name of a child node
+     * @return XMLUnmarshaller<?> to read the named child node as an object, otherwise null when the named child node is text (or is not bound at all)
+     */
+    protected abstract XMLUnmarshaller<?> unmarshaller(String name);
+
+    /**
+     * Read the given text of the named child node into the given object.
+     * @param object to read into
+     * @param name of the child node
+     * @param text of the child node (trimmed)
+     * @throws IllegalArgumentException if the text cannot be converted to its field's type
+     */
+    protected abstract void text(T object, String name, String text);
+
+    /**
+     * Set the given child object, read from the named child node, on the given object.
+     * @param object to read into
+     * @param name of the child node
+     * @param child read by the {@link #unmarshaller(String)} of the given name
+     */
+    protected abstract void child(T object, String name, Object child);
+
+    /**
+     * Convert text to a char, for (generated) unmarshallers.
+     * @param text
+     * @return char the only character of the given text
+     * @throws IllegalArgumentException if the given text is not a single character
+     */
+    protected static char toChar(String text)
+    {
+        if (text.length() != 1)
+        {
+            throw new IllegalArgumentException(format("\"{0}\" is not a single character", text));
+        }
+
+        return text.charAt(0);
+    }
+
+    /**
+     *
+     */
+    protected XMLUnmarshaller()
+    {
+        super();
+    }
+
+    /**
+     * Start reading a (new) object with the given unmarshaller.
+     * @param unmarshaller of the object's class
+     * @param qName of the object's node
+     * @param attributes of the object's node
+     * @throws SAXException
+     */
+    private void push(XMLUnmarshaller<?> unmarshaller, String qName, Attributes attributes) throws SAXException
+    {
+        if (++depth == objects.length)
+        {
+            objects = Arrays.copyOf(objects, depth * 2);
+            unmarshallers = Arrays.copyOf(unmarshallers, depth * 2);
+        }
+
+        XMLUnmarshaller<Object> binder = bind(unmarshaller);
+        Object object = binder.create();
+
+        try
+        {
+            binder.attributes(object, attributes);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new SAXException(format("Failed to read attributes of node {0}", qName), e);
+        }
+
+        objects[depth] = object;
+        unmarshallers[depth] = unmarshaller;
+    }
+
+    /**
+     *
+     * @param object
+     * @return T the given object, which is the type of this unmarshaller
+     */
+    @SuppressWarnings("unchecked")
+    private T cast(Object object)
+    {
+        return (T) object;
+    }
+
+    /**
+     * The given unmarshaller, as one that can be given any object, as each object is only ever given to its own (type of) unmarshaller.
+     * @param unmarshaller
+     * @return XMLUnmarshaller<Object>
+     */
+    @SuppressWarnings("unchecked")
+    private static XMLUnmarshaller<Object> bind(XMLUnmarshaller<?> unmarshaller)
+    {
+        return (XMLUnmarshaller<Object>) unmarshaller;
+    }
+}
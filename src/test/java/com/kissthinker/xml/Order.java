@@ -0,0 +1,107 @@
+package com.kissthinker.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An order marked as XML, from which (upon compilation) {@link XMLProcessor} generates OrderXMLMarshaller (and Order$LocationXMLMarshaller).
+ * @author David Ainslie
+ *
+ */
+@XMLElement
+public class Order
+{
+    /** */
+    @XMLAttribute
+    int id;
+
+    /** */
+    @XMLAttribute(name = "currency")
+    private String currencyCode;
+
+    /** */
+    @XMLElement
+    String status;
+
+    /** */
+    @XMLElement
+    private boolean urgent;
+
+    /** */
+    @XMLElement(name = "location")
+    List<Location> locations = new ArrayList<>();
+
+    /** Not XML. */
+    String notes;
+
+    /**
+     * Getter
+     * @return String
+     */
+    public String getCurrencyCode()
+    {
+        return currencyCode;
+    }
+
+    /**
+     * Setter
+     * @param currencyCode
+     */
+    public void setCurrencyCode(String currencyCode)
+    {
+        this.currencyCode = currencyCode;
+    }
+
+    /**
+     * Getter
+     * @return boolean
+     */
+    public boolean isUrgent()
+    {
+        return urgent;
+    }
+
+    /**
+     * Setter
+     * @param urgent
+     */
+    public void setUrgent(boolean urgent)
+    {
+        this.urgent = urgent;
+    }
+
+    /**
+     * A location of an order.
+     */
+    @XMLElement
+    public static class Location
+    {
+        /** */
+        @XMLAttribute
+        String name;
+
+        /** */
+        @XMLAttribute
+        String description;
+
+        /**
+         *
+         */
+        public Location()
+        {
+            super();
+        }
+
+        /**
+         *
+         * @param name
+         * @param description
+         */
+        public Location(String name, String description)
+        {
+            super();
+            this.name = name;
+            this.description = description;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.kissthinker.xml;
+
+/**
+ * A top level class named as the nested class {@link Order.Location} once was in the name of its generated classes, which must not clash with those of the nested class.
+ * @author David Ainslie
+ *
+ */
+@XMLElement(name = "orderLocation")
+public class Order_Location
+{
+    /** */
+    @XMLAttribute
+    String code;
+}
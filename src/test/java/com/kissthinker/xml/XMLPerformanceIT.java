@@ -0,0 +1,1002 @@
+package com.kissthinker.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.kissthinker.xml.XML.Format;
+
+/**
+ * Performance (timing) checks of {@link XML} against large documents.<br/>
+ * As an integration test, this is only run with the "integration" profile e.g. mvn -P integration verify
+ * @author David Ainslie
+ *
+ */
+public class XMLPerformanceIT
+{
+    /** */
+    private static final int ITERATIONS = 20;
+
+    /**
+     *
+     */
+    @Test
+    public void writeTo() throws IOException
+    {
+        XML xml = createXML(10000);
+        int length = xml.toString().length();
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            StringWriter writer = new StringWriter(length);
+            xml.writeTo(writer);
+            assertEquals(length, writer.getBuffer().length());
+        }
+
+        long stop = System.currentTimeMillis();
+        System.out.printf("%nWriting of %s nodes %s times in %s milliseconds%n", 10000 * 4, ITERATIONS, stop - start);
+    }
+
+    /**
+     * Attribute heavy documents (as order.xml) are dominated by the writing of attributes and end tags.
+     */
+    @Test
+    public void writeAttributes() throws IOException
+    {
+        XML xml = XML.create("locations");
+
+        for (int i = 0; i < 10000; i++)
+        {
+            xml.node("location")
+                .attribute("name", "UK")
+                .attribute("description", "United Kingdom")
+                .attribute("code", i)
+                .attribute("currency", "GBP")
+                .attribute("timeZone", "Europe/London")
+                .node("price").attribute("amount", "68.9").nodeEnd();
+        }
+
+        int length = xml.toString().length();
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            StringBuilder stringBuilder = new StringBuilder(length);
+            xml.writeTo(stringBuilder);
+            assertEquals(length, stringBuilder.length());
+        }
+
+        long stop = System.currentTimeMillis();
+        System.out.printf("%nWriting of %s attributes %s times in %s milliseconds%n", 10000 * 6, ITERATIONS, stop - start);
+    }
+
+    /**
+     * Replacing (and getting) attributes of a node with many attributes, which are indexed.
+     */
+    @Test
+    public void attributeLookup()
+    {
+        XML xml = XML.create("wide");
+        String[] names = new String[64];
+
+        for (int i = 0; i < names.length; i++)
+        {
+            names[i] = "attribute" + i;
+            xml.attribute(names[i], i);
+        }
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < 1000000; i++)
+        {
+            String name = names[i % names.length];
+            xml.attribute(name, xml.attribute(name));
+        }
+
+        long stop = System.currentTimeMillis();
+        assertEquals("63", xml.attribute("attribute63"));
+        System.out.printf("%nGetting and replacing %s attributes (of %s) in %s milliseconds%n", 1000000, names.length, stop - start);
+    }
+
+    /**
+     * Snapshots of large XML, with a single change between each, taken while another thread writes the latest snapshot.
+     */
+    @Test
+    public void snapshot() throws Exception
+    {
+        final XML xml = createXML(10000);
+        final AtomicReference<XML> latest = new AtomicReference<>(xml.snapshot());
+        final int length = latest.get().toString().length();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger writes = new AtomicInteger();
+
+        Thread reader = new Thread()
+        {
+            /**
+             *
+             * @see java.lang.Thread#run()
+             */
+            @Override
+            public void run()
+            {
+                while (!done.get())
+                {
+                    // The status changes between "ACTIVE" and "CLOSED", both of the same length
+                    assertEquals(length, latest.get().toString().length());
+                    writes.incrementAndGet();
+                }
+            }
+        };
+
+        reader.start();
+
+        XML status = xml.children().get(1);
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < 10000; i++)
+        {
+            status.text(i % 2 == 0 ? "CLOSED" : "ACTIVE");
+            latest.set(xml.snapshot());
+        }
+
+        long stop = System.currentTimeMillis();
+        done.set(true);
+        reader.join();
+
+        System.out.printf("%nTaking of %s snapshots (of %s nodes) in %s milliseconds, while %s snapshots were written%n", 10000, 10000 * 4, stop - start, writes.get());
+    }
+
+    /**
+     * Many threads appending records under one node, funnelled through a lock versus appending to a concurrent node.
+     */
+    @Test
+    public void concurrentAppend() throws Exception
+    {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        int records = 250000;
+
+        for (int i = 0; i < 3; i++)
+        {
+            XML locked = XML.create("batch").node("records");
+            long lockedMillis = append(locked, true, threads, records);
+
+            XML concurrent = XML.create("batch").node("records").concurrent(true);
+            long concurrentMillis = append(concurrent, false, threads, records);
+
+            assertEquals(threads * records, locked.children().size());
+            assertEquals(threads * records, concurrent.children().size());
+
+            System.out.printf("%nAppending of %s records by %s threads in %s milliseconds with a lock, and %s milliseconds to a concurrent node (merged)%n",
+                              threads * records, threads, lockedMillis, concurrentMillis);
+        }
+    }
+
+    /**
+     * Parsing of 1, 10 and 100 MB of XML into nodes, versus reading it (not parsing) by concatenating each line onto the text of a single node as {@link XML#parse(InputStream)} once did,
+     * which being quadratic is only timed for 1 MB.
+     */
+    @Test
+    public void parse()
+    {
+        String warmUp = createXML(1000).toString();
+        int locationLength = warmUp.length() / 1000;
+
+        for (int i = 0; i < 10; i++)
+        {
+            XML.parse(warmUp);
+        }
+
+        for (int megabytes : new int[] { 1, 10, 100 })
+        {
+            int locations = megabytes * 1024 * 1024 / locationLength;
+            byte[] xml = createXML(locations).toString().getBytes(StandardCharsets.UTF_8);
+
+            long start = System.currentTimeMillis();
+            XML parsed = XML.parse(new ByteArrayInputStream(xml));
+            long stop = System.currentTimeMillis();
+
+            assertEquals(locations, parsed.children().get(2).children().size());
+            System.out.printf("%nParsing of %s MB (%s nodes) in %s milliseconds", xml.length / (1024 * 1024), locations * 4 + 4, stop - start);
+
+            if (megabytes == 1)
+            {
+                start = System.currentTimeMillis();
+                XML read = readByLine(new ByteArrayInputStream(xml));
+                stop = System.currentTimeMillis();
+
+                assertTrue(read.text().endsWith("</order>"));
+                System.out.printf(", versus reading line by line in %s milliseconds", stop - start);
+            }
+        }
+
+        System.out.println();
+    }
+
+    /**
+     * Converting to a map and parsing of a 200 MB file, reading the file as a stream versus via memory mapping.
+     */
+    @Test
+    public void readFile() throws IOException
+    {
+        Path path = Files.createTempFile("xml", ".xml");
+
+        try
+        {
+            XML locations = createXML(10000).children().get(2);
+            String location = locations.children().get(0).toString();
+
+            try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8))
+            {
+                writer.write("<order>\n    <locations>\n");
+
+                while (Files.size(path) < 200L * 1024 * 1024)
+                {
+                    for (int i = 0; i < 10000; i++)
+                    {
+                        writer.write(location);
+                    }
+
+                    writer.flush();
+                }
+
+                writer.write("    </locations>\n</order>\n");
+            }
+
+            for (int i = 0; i < 2; i++)
+            {
+                long start = System.currentTimeMillis();
+                Map<String, String> streamed = XML.toMap(path.toUri());
+                long streamedMillis = System.currentTimeMillis() - start;
+
+                start = System.currentTimeMillis();
+                Map<String, String> mapped = XML.toMap(path);
+                long mappedMillis = System.currentTimeMillis() - start;
+
+                assertEquals(streamed, mapped);
+                System.out.printf("%nConverting of %s MB file to a map in %s milliseconds streamed, and %s milliseconds mapped",
+                                  Files.size(path) / (1024 * 1024), streamedMillis, mappedMillis);
+            }
+
+            long start = System.currentTimeMillis();
+            int streamed;
+
+            try (InputStream inputStream = Files.newInputStream(path))
+            {
+                streamed = XML.parse(inputStream).children().get(0).children().size();
+            }
+
+            long streamedMillis = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            int mapped = XML.parse(path).children().get(0).children().size();
+            long mappedMillis = System.currentTimeMillis() - start;
+
+            assertEquals(streamed, mapped);
+            System.out.printf("%nParsing of %s MB file in %s milliseconds streamed, and %s milliseconds mapped%n", Files.size(path) / (1024 * 1024), streamedMillis, mappedMillis);
+        }
+        finally
+        {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Reading of many small messages, and of 10 MB of XML, into maps and into XML, by the JDK's SAX parser versus by the pull parser.
+     */
+    @Test
+    public void pullParser()
+    {
+        byte[] message = createXML(2).toString().getBytes(StandardCharsets.UTF_8);
+        byte[] large = createXML(40000).toString().getBytes(StandardCharsets.UTF_8);
+
+        for (int i = 0; i < 3; i++)
+        {
+            long start = System.currentTimeMillis();
+
+            for (int j = 0; j < 100000; j++)
+            {
+                XML.toMap(new ByteArrayInputStream(message));
+            }
+
+            long saxMillis = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+
+            for (int j = 0; j < 100000; j++)
+            {
+                XML.toMap(new XMLPullParser(message));
+            }
+
+            long pullMillis = System.currentTimeMillis() - start;
+            System.out.printf("%nConverting of %s messages to maps in %s milliseconds via SAX, and %s milliseconds via the pull parser", 100000, saxMillis, pullMillis);
+
+            start = System.currentTimeMillis();
+            Map<String, String> saxMap = XML.toMap(new ByteArrayInputStream(large));
+            saxMillis = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            Map<String, String> pullMap = XML.toMap(new XMLPullParser(large));
+            pullMillis = System.currentTimeMillis() - start;
+
+            assertEquals(saxMap, pullMap);
+            System.out.printf("%nConverting of %s MB to a map in %s milliseconds via SAX, and %s milliseconds via the pull parser", large.length / (1024 * 1024), saxMillis, pullMillis);
+
+            start = System.currentTimeMillis();
+            XML saxXML = XML.parse(new ByteArrayInputStream(large));
+            saxMillis = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            XML pullXML = XML.parse(new XMLPullParser(large));
+            pullMillis = System.currentTimeMillis() - start;
+
+            assertEquals(saxXML.children().get(2).children().size(), pullXML.children().get(2).children().size());
+            System.out.printf("%nParsing of %s MB in %s milliseconds via SAX, and %s milliseconds via the pull parser", large.length / (1024 * 1024), saxMillis, pullMillis);
+
+            start = System.currentTimeMillis();
+            XMLPullParser parser = new XMLPullParser(ByteBuffer.wrap(large));
+            int events = 0;
+
+            while (parser.next() != XMLPullParser.END_DOCUMENT)
+            {
+                events++;
+            }
+
+            System.out.printf("%nPulling of %s events (without creating any strings) from %s MB in %s milliseconds%n", events, large.length / (1024 * 1024), System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Reading of the "header" (attributes and status) of 1, 10 and 100 MB of XML, parsed in full versus parsed lazily i.e. deferring the content below the root's children.
+     */
+    @Test
+    public void parseLazily()
+    {
+        byte[] warmUp = createXML(1000).toString().getBytes(StandardCharsets.UTF_8);
+        int locationLength = warmUp.length / 1000;
+
+        for (int i = 0; i < 10; i++)
+        {
+            XML.parse(new XMLPullParser(warmUp));
+            XML.parse(new XMLPullParser(warmUp), 1);
+        }
+
+        for (int megabytes : new int[] { 1, 10, 100 })
+        {
+            byte[] xml = createXML(megabytes * 1024 * 1024 / locationLength).toString().getBytes(StandardCharsets.UTF_8);
+
+            long start = System.currentTimeMillis();
+            XML parsed = XML.parse(new XMLPullParser(xml));
+            assertEquals("ACTIVE", parsed.children().get(1).text());
+            long parsedMillis = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            XML lazy = XML.parse(new XMLPullParser(xml), 1);
+            assertEquals("2000", lazy.attribute("id"));
+            assertEquals("ACTIVE", lazy.children().get(1).text());
+            long lazyMillis = System.currentTimeMillis() - start;
+
+            System.out.printf("%nReading of the header of %s MB in %s milliseconds parsed in full, and %s milliseconds parsed lazily", xml.length / (1024 * 1024), parsedMillis, lazyMillis);
+
+            start = System.currentTimeMillis();
+            assertEquals(parsed.children().get(2).children().size(), lazy.children().get(2).children().size());
+            System.out.printf(", then %s milliseconds to parse the (deferred) locations", System.currentTimeMillis() - start);
+        }
+
+        System.out.println();
+    }
+
+    /**
+     * Memory and time of parsing 50 MB of XML into XML versus into an {@link XMLIndex}, and of looking up (via xpath) each of them.
+     */
+    @Test
+    public void index()
+    {
+        byte[] xml = createXML(200000).toString().getBytes(StandardCharsets.UTF_8);
+
+        for (int i = 0; i < 3; i++)
+        {
+            long before = usedMemory();
+            long start = System.currentTimeMillis();
+            XML parsed = XML.parse(new XMLPullParser(xml));
+            long parseMillis = System.currentTimeMillis() - start;
+            long parsedMemory = usedMemory() - before;
+
+            before = usedMemory();
+            start = System.currentTimeMillis();
+            XMLIndex index = XMLIndex.parse(xml);
+            long indexMillis = System.currentTimeMillis() - start;
+            long indexMemory = usedMemory() - before;
+
+            System.out.printf("%nParsing of %s MB in %s milliseconds into XML of %s MB, and in %s milliseconds into an index of %s tokens (%s MB)",
+                              xml.length / (1024 * 1024), parseMillis, parsedMemory / (1024 * 1024), indexMillis, index.size(), indexMemory / (1024 * 1024));
+
+            start = System.currentTimeMillis();
+
+            for (int j = 0; j < 100000; j++)
+            {
+                assertEquals("United Kingdom 0", parsed.get("//location/@description"));
+            }
+
+            long parsedLookupMillis = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+
+            for (int j = 0; j < 100000; j++)
+            {
+                assertEquals("United Kingdom 0", index.get("//location/@description"));
+            }
+
+            System.out.printf("%nLooking up of %s attributes in %s milliseconds from XML, and %s milliseconds from the index", 100000, parsedLookupMillis, System.currentTimeMillis() - start);
+
+            start = System.currentTimeMillis();
+            assertEquals("", index.get("//locations/location/@missing"));
+            System.out.printf("%nLooking up of a missing attribute (through all %s tokens) in %s milliseconds", index.size(), System.currentTimeMillis() - start);
+
+            start = System.currentTimeMillis();
+            assertEquals(parsed.toMap(), index.toMap());
+            System.out.printf("%nConverting of XML and the index to maps in %s milliseconds%n", System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Large mostly static XML, where only the status changes between writes, so all locations are spliced in from cache.
+     */
+    @Test
+    public void writeCached() throws IOException
+    {
+        XML xml = XML.create("order").cache(true);
+        XML status = xml.node("status", "ACTIVE");
+        XML locations = xml.node("locations").cache(true);
+
+        for (int i = 0; i < 10000; i++)
+        {
+            locations.node("location").attribute("name", "UK " + i).attribute("description", "United Kingdom " + i)
+                .node("address", "Address " + i).nodeEnd()
+                .node("country", "UK").nodeEnd()
+                .node("timeStamp", "20120101 12:39:58").nodeEnd();
+        }
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            status.text("ACTIVE " + i);
+            StringWriter writer = new StringWriter();
+            xml.writeTo(writer);
+        }
+
+        long stop = System.currentTimeMillis();
+        System.out.printf("%nWriting of %s (cached) nodes with one change %s times in %s milliseconds%n", 10000 * 4, ITERATIONS, stop - start);
+    }
+
+    /**
+     * Realistic values i.e. mostly with nothing to escape (1 in 100 values has an "&").
+     */
+    @Test
+    public void writeEscaped() throws IOException
+    {
+        XML xml = XML.create("products");
+
+        for (int i = 0; i < 40000; i++)
+        {
+            xml.node("product").attribute("name", i % 100 == 0 ? "Fish & Chips " + i : "Fish and Chips " + i)
+                .node("description", "A realistic description of product number " + i + " that is mostly plain text").nodeEnd();
+        }
+
+        int length = xml.toString().length();
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            StringBuilder stringBuilder = new StringBuilder(length);
+            xml.writeTo(stringBuilder);
+            assertEquals(length, stringBuilder.length());
+        }
+
+        long stop = System.currentTimeMillis();
+        System.out.printf("%nWriting (escaping) of %s values %s times in %s milliseconds%n", 40000 * 2, ITERATIONS, stop - start);
+    }
+
+    /**
+     * Wide XML, as in a batch export of many independent records, written sequentially and then in parallel.
+     */
+    @Test
+    public void writeParallel() throws IOException
+    {
+        XML xml = XML.create("records");
+
+        for (int i = 0; i < 200000; i++)
+        {
+            xml.node("record").attribute("id", i)
+                .node("name", "Name " + i).nodeEnd()
+                .node("description", "Description " + i).nodeEnd();
+        }
+
+        int length = xml.toString().length();
+        ForkJoinPool pool = new ForkJoinPool();
+
+        for (ForkJoinPool parallel : new ForkJoinPool[] { null, pool })
+        {
+            long start = System.currentTimeMillis();
+
+            for (int i = 0; i < ITERATIONS; i++)
+            {
+                StringBuilder stringBuilder = new StringBuilder(length);
+
+                if (parallel == null)
+                {
+                    xml.writeTo(stringBuilder);
+                }
+                else
+                {
+                    xml.writeTo(stringBuilder, Format.PRETTY, parallel);
+                }
+
+                assertEquals(length, stringBuilder.length());
+            }
+
+            long stop = System.currentTimeMillis();
+            System.out.printf("%nWriting of %s records %s times %s in %s milliseconds%n", 200000, ITERATIONS, parallel == null ? "sequentially" : "in parallel", stop - start);
+        }
+
+        pool.shutdown();
+    }
+
+    /**
+     * Streaming a large export, where nothing is retained i.e. memory is proportional to the depth of the XML and not its size.
+     */
+    @Test
+    public void stream() throws IOException
+    {
+        OutputStream outputStream = new OutputStream()
+        {
+            /**
+             *
+             * @see java.io.OutputStream#write(int)
+             */
+            @Override
+            public void write(int b)
+            {
+            }
+
+            /**
+             *
+             * @see java.io.OutputStream#write(byte[], int, int)
+             */
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+            }
+        };
+
+        long start = System.currentTimeMillis();
+
+        XMLStream xmlStream = XMLStream.create(outputStream, Format.COMPACT, "records");
+
+        for (int i = 0; i < 1000000; i++)
+        {
+            xmlStream.node("record").attribute("id", i)
+                .node("name", "Name " + i).nodeEnd()
+                .node("description", "Description " + i).nodeEnd()
+                .nodeEnd();
+        }
+
+        xmlStream.xmlEnd();
+
+        long stop = System.currentTimeMillis();
+        System.out.printf("%nStreaming of %s records in %s milliseconds%n", 1000000, stop - start);
+    }
+
+    /**
+     * The same (small) message, with different values, built and written as XML versus written from a template.
+     */
+    @Test
+    public void template()
+    {
+        XMLTemplate template = XMLTemplate.compile(XML.create("order").attribute("id", "${id}")
+                                                       .node("status", "${status}").nodeEnd()
+                                                       .node("location").attribute("name", "${location}")
+                                                       .xmlEnd(), Format.COMPACT);
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < 1000000; i++)
+        {
+            buffer.clear();
+            XML.create("order").attribute("id", i).node("status", "ACTIVE").nodeEnd().node("location").attribute("name", "UK").xmlEnd().writeTo(buffer, Format.COMPACT);
+        }
+
+        long stop = System.currentTimeMillis();
+        System.out.printf("%nBuilding and writing of %s messages in %s milliseconds%n", 1000000, stop - start);
+
+        String[] values = { null, "ACTIVE", "UK" };
+        start = System.currentTimeMillis();
+
+        for (int i = 0; i < 1000000; i++)
+        {
+            buffer.clear();
+            values[0] = Integer.toString(i);
+            template.writeTo(buffer, values);
+        }
+
+        stop = System.currentTimeMillis();
+        System.out.printf("%nWriting of %s messages from a template in %s milliseconds%n", 1000000, stop - start);
+    }
+
+    /**
+     * The same objects written via the (hand written) DSL versus via the generated marshaller, each warmed up first.
+     */
+    @Test
+    public void marshaller() throws IOException
+    {
+        Order order = new Order();
+        order.status = "ACTIVE";
+        order.setCurrencyCode("GBP");
+        order.locations.add(new Order.Location("UK", "United Kingdom"));
+        order.locations.add(new Order.Location("USA", "United States of America"));
+
+        XMLMarshaller<Order> marshaller = XMLMarshaller.of(Order.class);
+        StringBuilder stringBuilder = new StringBuilder();
+
+        writeViaDSL(order, stringBuilder, 1000000);
+        writeViaMarshaller(marshaller, order, stringBuilder, 1000000);
+
+        long start = System.currentTimeMillis();
+        writeViaDSL(order, stringBuilder, 1000000);
+        long stop = System.currentTimeMillis();
+        System.out.printf("%nWriting of %s objects via the DSL in %s milliseconds%n", 1000000, stop - start);
+
+        start = System.currentTimeMillis();
+        writeViaMarshaller(marshaller, order, stringBuilder, 1000000);
+        stop = System.currentTimeMillis();
+        System.out.printf("%nWriting of %s objects via a generated marshaller in %s milliseconds%n", 1000000, stop - start);
+    }
+
+    /**
+     * The same XML read into objects via {@link XML#toMap(String)} (and then map look ups) versus via the generated unmarshaller, each warmed up first.
+     */
+    @Test
+    public void unmarshaller()
+    {
+        Order order = new Order();
+        order.id = 2000;
+        order.status = "ACTIVE";
+        order.setCurrencyCode("GBP");
+        order.locations.add(new Order.Location("UK", "United Kingdom"));
+        order.locations.add(new Order.Location("USA", "United States of America"));
+
+        String xml = XMLMarshaller.of(Order.class).toString(order, Format.PRETTY);
+        XMLUnmarshaller<Order> unmarshaller = XMLUnmarshaller.of(Order.class);
+
+        readViaMap(xml, 10000);
+        readViaUnmarshaller(unmarshaller, xml, 10000);
+
+        long start = System.currentTimeMillis();
+        readViaMap(xml, 100000);
+        long stop = System.currentTimeMillis();
+        System.out.printf("%nReading of %s objects via maps in %s milliseconds%n", 100000, stop - start);
+
+        start = System.currentTimeMillis();
+        readViaUnmarshaller(unmarshaller, xml, 100000);
+        stop = System.currentTimeMillis();
+        System.out.printf("%nReading of %s objects via a generated unmarshaller in %s milliseconds%n", 100000, stop - start);
+    }
+
+    /**
+     * Deep but narrow XML i.e. a chain of nodes.
+     */
+    @Test
+    public void writeDeep() throws IOException
+    {
+        XML xml = XML.create("node");
+
+        for (int i = 0; i < 2000; i++)
+        {
+            xml = xml.node("node").attribute("depth", i);
+        }
+
+        xml = xml.xmlEnd();
+        int length = xml.toString(Format.COMPACT).length();
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS * 100; i++)
+        {
+            StringBuilder stringBuilder = new StringBuilder(length);
+            xml.writeTo(stringBuilder, Format.COMPACT);
+            assertEquals(length, stringBuilder.length());
+        }
+
+        long stop = System.currentTimeMillis();
+        System.out.printf("%nWriting of %s deep nodes %s times in %s milliseconds%n", 2000, ITERATIONS * 100, stop - start);
+    }
+
+    /**
+     * Memory of a million node XML as {@link XML} and as {@link CompactXML}.
+     */
+    @Test
+    public void memory()
+    {
+        long before = usedMemory();
+        XML xml = XML.create("records");
+
+        for (int i = 0; i < 250000; i++)
+        {
+            xml.node("record").attribute("id", "ID")
+                .node("name", "Name").nodeEnd()
+                .node("status", "ACTIVE").nodeEnd()
+                .node("timeStamp", "20120101 12:39:58").nodeEnd()
+                .nodeEnd();
+        }
+
+        long xmlMemory = usedMemory() - before;
+        long length = xml.length(Format.COMPACT);
+        xml = null;
+
+        before = usedMemory();
+        CompactXML compactXML = CompactXML.create("records");
+
+        for (int i = 0; i < 250000; i++)
+        {
+            compactXML.node("record").attribute("id", "ID")
+                .node("name", "Name").nodeEnd()
+                .node("status", "ACTIVE").nodeEnd()
+                .node("timeStamp", "20120101 12:39:58").nodeEnd()
+                .nodeEnd();
+        }
+
+        long compactXMLMemory = usedMemory() - before;
+        assertEquals(1000001, compactXML.size());
+        assertEquals(length, compactXML.toString(Format.COMPACT).length());
+
+        System.out.printf("%nMemory of %s nodes as XML %s bytes and as CompactXML %s bytes%n", 1000001, xmlMemory, compactXMLMemory);
+    }
+
+    /**
+     * Memory of a million node XML where (as is typical) most nodes are leaves without attributes.
+     */
+    @Test
+    public void memoryOfLeaves()
+    {
+        long before = usedMemory();
+        XML xml = XML.create("orders");
+
+        for (int i = 0; i < 200000; i++)
+        {
+            xml.node("order")
+                .node("timeStamp", "20120101 12:39:58").nodeEnd()
+                .node("userName", "scooby").nodeEnd()
+                .node("status", "ACTIVE").nodeEnd()
+                .node("additionalStatus").nodeEnd();
+        }
+
+        long memory = usedMemory() - before;
+        assertTrue(xml.length(Format.COMPACT) > 0);
+
+        System.out.printf("%nMemory of %s (mostly leaf) nodes as XML %s bytes%n", 1000001, memory);
+    }
+
+    /**
+     * Read the given XML the given number of times, into an order converted from a map.
+     * @param xml of an order
+     * @param count
+     */
+    private void readViaMap(String xml, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            Map<String, String> map = XML.toMap(xml);
+
+            Order order = new Order();
+            order.id = Integer.parseInt(map.get("order.id"));
+            order.setCurrencyCode(map.get("order.currency"));
+            order.status = map.get("order.status");
+            order.setUrgent(Boolean.parseBoolean(map.get("order.urgent")));
+            // A map holds only the last of repeated nodes
+            order.locations.add(new Order.Location(map.get("order.location.name"), map.get("order.location.description")));
+
+            assertEquals(2000, order.id);
+        }
+    }
+
+    /**
+     * Read the given XML the given number of times via the given unmarshaller.
+     * @param unmarshaller
+     * @param xml of an order
+     * @param count
+     */
+    private void readViaUnmarshaller(XMLUnmarshaller<Order> unmarshaller, String xml, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            Order order = unmarshaller.unmarshal(xml);
+            assertEquals(2000, order.id);
+        }
+    }
+
+    /**
+     * Write the given order the given number of times, building XML via the DSL.
+     * @param order
+     * @param stringBuilder to write to, which is reset for each write
+     * @param count
+     * @throws IOException
+     */
+    private void writeViaDSL(Order order, StringBuilder stringBuilder, int count) throws IOException
+    {
+        for (int i = 0; i < count; i++)
+        {
+            stringBuilder.setLength(0);
+            order.id = i;
+
+            XML xml = XML.create("order").attribute("id", order.id).attribute("currency", order.getCurrencyCode())
+                          .node("status", order.status).nodeEnd()
+                          .node("urgent", String.valueOf(order.isUrgent())).nodeEnd();
+
+            for (Order.Location location : order.locations)
+            {
+                xml.node("location").attribute("name", location.name).attribute("description", location.description).nodeEnd();
+            }
+
+            xml.xmlEnd().writeTo(stringBuilder, Format.COMPACT);
+        }
+    }
+
+    /**
+     * Write the given order the given number of times via the given marshaller.
+     * @param marshaller
+     * @param order
+     * @param stringBuilder to write to, which is reset for each write
+     * @param count
+     * @throws IOException
+     */
+    private void writeViaMarshaller(XMLMarshaller<Order> marshaller, Order order, StringBuilder stringBuilder, int count) throws IOException
+    {
+        for (int i = 0; i < count; i++)
+        {
+            stringBuilder.setLength(0);
+            order.id = i;
+            marshaller.writeTo(stringBuilder, Format.COMPACT, order);
+        }
+    }
+
+    /**
+     * Append records to the given parent from the given number of threads, which either lock the parent or (as it is concurrent) not.
+     * @param parent to append to
+     * @param lock true to append to the parent while holding its lock
+     * @param threads number of threads appending
+     * @param records number of records appended by each thread
+     * @return long milliseconds to append (and merge) all the records
+     * @throws InterruptedException
+     */
+    private long append(final XML parent, final boolean lock, int threads, final int records) throws InterruptedException
+    {
+        Thread[] producers = new Thread[threads];
+
+        for (int p = 0; p < threads; p++)
+        {
+            final int producer = p;
+
+            producers[p] = new Thread()
+            {
+                /**
+                 *
+                 * @see java.lang.Thread#run()
+                 */
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < records; i++)
+                    {
+                        if (lock)
+                        {
+                            synchronized (parent)
+                            {
+                                parent.node("record").attribute("producer", producer).node("index", "Record " + i);
+                            }
+                        }
+                        else
+                        {
+                            parent.node("record").attribute("producer", producer).node("index", "Record " + i);
+                        }
+                    }
+                }
+            };
+        }
+
+        long start = System.currentTimeMillis();
+
+        for (Thread producer : producers)
+        {
+            producer.start();
+        }
+
+        for (Thread producer : producers)
+        {
+            producer.join();
+        }
+
+        // Merge (for a concurrent parent)
+        parent.children();
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Read XML into the text of a single node, as {@link XML#parse(InputStream)} did before parsing, concatenating each line onto the text so far.
+     * @param xmlInputStream
+     * @return XML
+     */
+    private XML readByLine(InputStream xmlInputStream)
+    {
+        XML xml = XML.create("xml");
+
+        try (Scanner scanner = new Scanner(xmlInputStream))
+        {
+            while (scanner.hasNextLine())
+            {
+                xml.text(xml.text() == null ? scanner.nextLine() : xml.text() + scanner.nextLine());
+            }
+        }
+
+        return xml;
+    }
+
+    /**
+     *
+     * @return long memory currently used (after garbage collection)
+     */
+    private long usedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 4; i++)
+        {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Create an order like XML of the given number of locations, where each location has 3 children.
+     * @param locations
+     * @return XML
+     */
+    private XML createXML(int locations)
+    {
+        XML xml = XML.create("order").attribute("id", 2000).attribute("version", "2.0")
+                    .node("timeStamp", "20120101 12:39:58").nodeEnd()
+                    .node("status", "ACTIVE").nodeEnd()
+                    .node("locations");
+
+        for (int i = 0; i < locations; i++)
+        {
+            xml.node("location").attribute("name", "UK " + i).attribute("description", "United Kingdom " + i)
+                .node("address", "Address " + i).nodeEnd()
+                .node("country", "UK").nodeEnd()
+                .node("timeStamp", "20120101 12:39:58").nodeEnd();
+        }
+
+        return xml.xmlEnd();
+    }
+}
@@ -1,17 +1,47 @@
 package com.kissthinker.xml;
 
 import static com.kissthinker.object.ClassUtil.path;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
 
 import org.junit.Test;
 
 import com.kissthinker.text.StringUtil;
 import com.kissthinker.xml.XML.AttributeCallback;
+import com.kissthinker.xml.XML.Format;
 
 /**
  * Test {@link XML}
@@ -32,6 +62,688 @@ public class XMLTest
         assertTrue(xml.toString().contains("id=\"scooby\""));
     }
 
+    /**
+     *
+     */
+    @Test
+    public void writeTo() throws IOException
+    {
+        XML xml = createXML();
+        StringWriter writer = new StringWriter();
+        xml.writeTo(writer);
+
+        assertEquals(xml.toString(), writer.toString());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void escape()
+    {
+        XML xml = XML.create("order").attribute("note", "Say \"<hi>\" & 'bye'")
+                    .node("status", "<ACTIVE> & \"ready\"").nodeEnd()
+                    .node("plain", "Nothing to escape")
+                    .xmlEnd();
+
+        assertEquals("<order note=\"Say &quot;&lt;hi>&quot; &amp; 'bye'\"><status>&lt;ACTIVE&gt; &amp; \"ready\"</status><plain>Nothing to escape</plain></order>",
+                     xml.toString(Format.COMPACT));
+
+        Map<String, String> map = XML.toMap(xml.toString());
+        assertEquals("Say \"<hi>\" & 'bye'", map.get("order.note"));
+        assertEquals("<ACTIVE> & \"ready\"", map.get("order.status"));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void compact()
+    {
+        XML xml = XML.create("order").attribute("id", 2000)
+                    .node("status", "ACTIVE").nodeEnd()
+                    .node("additionalStatus").nodeEnd()
+                    .node("notes", "").nodeEnd()
+                    .node("author").attribute("name", "The Author")
+                    .xmlEnd();
+
+        assertEquals("<order id=\"2000\"><status>ACTIVE</status><additionalStatus/><notes></notes><author name=\"The Author\"/></order>",
+                     xml.toString(Format.COMPACT));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void indent()
+    {
+        XML xml = XML.create("order").node("status", "ACTIVE").xmlEnd();
+
+        assertEquals("<order>\n  <status>\n    ACTIVE\n  </status>\n</order>\n", xml.toString(Format.indent(2)));
+        assertEquals(xml.toString(), xml.toString(Format.indent(4)));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void cache()
+    {
+        XML xml = createXML().cache(true);
+        XML demo3 = xml.node("demo3").cache(true).node("demo4").cache(true).nodeEnd();
+        String expected = xml.toString();
+
+        assertEquals(expected, xml.toString());
+        assertEquals(expected.replace("    ", ""), xml.toString(Format.indent(0)));
+
+        demo3.node("demo4").text("Changed").attribute("id", 1);
+        assertEquals(createXML().node("demo3").node("demo4").nodeEnd().node("demo4").text("Changed").attribute("id", 1).xmlEnd().toString(), xml.toString());
+
+        demo3.cache(false).text("Changed again");
+        assertTrue(xml.toString().contains("Changed again"));
+    }
+
+    /**
+     * Only nodes asked to be cached hold a rendering, so parsed XML is written (streamed) as is.
+     */
+    @Test
+    public void parsedNotCached() throws IOException
+    {
+        XML xml = XML.parse(createXML().toString());
+        StringWriter writer = new StringWriter();
+        xml.writeTo(writer);
+
+        assertEquals(createXML().toString(), writer.toString());
+        assertTrue(!xml.rendered());
+        assertTrue(!xml.children().get(0).rendered());
+    }
+
+    /**
+     * Writing (and building) XML of any depth must not overflow the stack.
+     */
+    @Test
+    public void deep()
+    {
+        int depth = 1000000;
+        XML xml = XML.create("n");
+
+        for (int i = 1; i < depth; i++)
+        {
+            xml = xml.node("n");
+        }
+
+        xml = xml.xmlEnd();
+        String compact = xml.toString(Format.COMPACT);
+
+        assertEquals("<n><n><n>", compact.substring(0, 9));
+        assertEquals((depth - 1) * "<n></n>".length() + "<n/>".length(), compact.length());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void writeParallel() throws IOException
+    {
+        XML xml = XML.create("records");
+        xml.node("summary").cache(true);
+
+        for (int i = 0; i < XML.PARALLEL_THRESHOLD * 3 + 1; i++)
+        {
+            xml.node("record").attribute("id", i).node("value", "Value " + i);
+        }
+
+        StringBuilder stringBuilder = new StringBuilder();
+        xml.writeTo(stringBuilder, Format.PRETTY, new ForkJoinPool(4));
+
+        assertEquals(xml.toString(), stringBuilder.toString());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void length()
+    {
+        XML xml = createXML().node("unicode").text("caf\u00e9 \u20ac \ud83d\ude00 \ud83d").nodeEnd()
+                             .node("d\u00e9mo").attribute("n\u00e4me", "\"<\u00fcber> & \ud83d").attribute("empty", "").node("empty").xmlEnd();
+
+        // Measured whether or not cached, before and after being rendered (and changed since), and from deferred content of a lazily parsed node
+        xml.children().get(0).cache(true);
+        XML lazy = XML.parse(new XMLPullParser(xml.toString().getBytes(StandardCharsets.UTF_8)), 1);
+
+        for (int i = 0; i < 3; i++)
+        {
+            for (Format format : new Format[] { Format.PRETTY, Format.COMPACT, Format.indent(1) })
+            {
+                assertEquals(xml.toString(format).length(), xml.length(format));
+                assertEquals(xml.toString(format).getBytes(StandardCharsets.UTF_8).length, xml.utf8Length(format));
+                assertEquals(xml.toString(format).length(), lazy.length(format));
+            }
+
+            xml.children().get(0).children().get(0).attribute("id", "changed " + i);
+            lazy = XML.parse(new XMLPullParser(xml.toString().getBytes(StandardCharsets.UTF_8)), 1);
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void stream() throws IOException
+    {
+        for (Format format : new Format[] { Format.PRETTY, Format.COMPACT })
+        {
+            StringWriter writer = new StringWriter();
+
+            XMLStream.create(writer, format, "demo").text("Root blah")
+                .node("demo1").text("Blah 1").attribute("id", "scooby")
+                    .node("address").text("Address 1").nodeEnd()
+                    .node("country").text("UK").nodeEnd()
+                    .node("empty").nodeEnd()
+                    .node("blank", "").nodeEnd()
+                    .nodeEnd()
+                .node("demo2").text("Blah 2 & more")
+                    .node("address").text("Address 2").nodeEnd()
+                    .node("country").text("USA")
+                    .xmlEnd();
+
+            assertEquals(createStreamedXML().toString(format), writer.toString());
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void streamToOutputStream() throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        XMLStream.create(outputStream, Format.COMPACT, "order").attribute("currency", "\u20ac").node("status", "ACTIVE").xmlEnd();
+
+        assertEquals("<order currency=\"\u20ac\"><status>ACTIVE</status></order>", new String(outputStream.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     *
+     */
+    @Test(expected = IllegalStateException.class)
+    public void streamTextAfterNode() throws IOException
+    {
+        XMLStream.create(new StringWriter(), "order").node("status").nodeEnd().text("Too late");
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void template() throws IOException
+    {
+        for (Format format : new Format[] { Format.PRETTY, Format.COMPACT })
+        {
+            XMLTemplate template = XMLTemplate.compile(XML.create("order").attribute("id", "${id}")
+                                                           .node("status", "${status}").nodeEnd()
+                                                           .node("location").attribute("name", "${location}").attribute("previous", "${status}")
+                                                           .xmlEnd(), format);
+
+            assertEquals(3, template.names().size());
+            assertEquals(1, template.indexOf("status"));
+
+            XML xml = XML.create("order").attribute("id", 2000)
+                          .node("status", "<\"ACTIVE\">").nodeEnd()
+                          .node("location").attribute("name", "\u20ac zone").attribute("previous", "<\"ACTIVE\">")
+                          .xmlEnd();
+
+            StringWriter writer = new StringWriter();
+            template.writeTo(writer, "2000", "<\"ACTIVE\">", "\u20ac zone");
+            assertEquals(xml.toString(format), writer.toString());
+
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            template.writeTo(buffer, "2000", "<\"ACTIVE\">", "\u20ac zone");
+            assertEquals(xml.toString(format), new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void templateAttributeAfterGreaterThan()
+    {
+        // A ">" (which is not escaped in an attribute value) before the slot does not make the slot text
+        XMLTemplate template = XMLTemplate.compile(XML.create("r").attribute("cond", "x > ${v}").text("${v}").xmlEnd(), Format.COMPACT);
+        String xml = template.toString("1\" evil=\"2");
+
+        assertEquals(XML.create("r").attribute("cond", "x > 1\" evil=\"2").text("1\" evil=\"2").xmlEnd().toString(Format.COMPACT), xml);
+        assertEquals("x > 1\" evil=\"2", XML.toMap(xml).get("r.cond"));
+        assertNull(XML.toMap(xml).get("r.evil"));
+    }
+
+    /**
+     *
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void templateSlotInName()
+    {
+        XMLTemplate.compile(XML.create("r").node("${name}").xmlEnd());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void marshaller() throws IOException
+    {
+        Order order = createOrder();
+
+        XML xml = XML.create("order").attribute("id", 2000).attribute("currency", "\u20ac")
+                      .node("status", "ACTIVE & ready").nodeEnd()
+                      .node("urgent", "true").nodeEnd()
+                      .node("location").attribute("name", "UK").attribute("description", "United Kingdom").nodeEnd()
+                      .node("location").attribute("name", "USA").attribute("description", "United States of America")
+                      .xmlEnd();
+
+        for (Format format : new Format[] { Format.PRETTY, Format.COMPACT })
+        {
+            assertEquals(xml.toString(format), XMLMarshaller.of(Order.class).toString(order, format));
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new OrderXMLMarshaller().writeTo(outputStream, Format.COMPACT, order);
+        assertEquals(xml.toString(Format.COMPACT), new String(outputStream.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A nested class and a top level class of the same name but for the $ have their own generated classes.
+     */
+    @Test
+    public void marshallerOfNestedClass()
+    {
+        Order_Location orderLocation = new Order_Location();
+        orderLocation.code = "UK";
+
+        assertEquals("<location name=\"UK\" description=\"United Kingdom\"/>", XMLMarshaller.of(Order.Location.class).toString(new Order.Location("UK", "United Kingdom"), Format.COMPACT));
+        assertEquals("<orderLocation code=\"UK\"/>", XMLMarshaller.of(Order_Location.class).toString(orderLocation, Format.COMPACT));
+        assertEquals("UK", XMLUnmarshaller.of(Order_Location.class).unmarshal("<orderLocation code=\"UK\"/>").code);
+    }
+
+    /**
+     * A private class (or a class nested in a private class) cannot be referred to by generated code, so is an error of {@link XMLProcessor} rather than of the generated code.
+     * @throws IOException
+     */
+    @Test
+    public void processorRejectsPrivateClasses() throws IOException
+    {
+        final String source = "package com.kissthinker.xml;\n"
+                        + "public class PrivateOrder\n"
+                        + "{\n"
+                        + "    @XMLElement private static class Location { @XMLAttribute String code; }\n"
+                        + "    private static class Hidden { @XMLElement static class Location { @XMLAttribute String code; } }\n"
+                        + "}\n";
+
+        JavaFileObject javaFileObject = new SimpleJavaFileObject(URI.create("string:///com/kissthinker/xml/PrivateOrder.java"), JavaFileObject.Kind.SOURCE)
+        {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors)
+            {
+                return source;
+            }
+        };
+
+        Path output = Files.createTempDirectory("processor");
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        List<String> options = Arrays.asList("-proc:only", "-classpath", System.getProperty("java.class.path"), "-s", output.toString(), "-d", output.toString());
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null, Collections.singletonList(javaFileObject));
+        task.setProcessors(Collections.singletonList(new XMLProcessor()));
+
+        assertTrue(!task.call());
+
+        List<Long> errorLines = new ArrayList<>();
+
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+        {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+            {
+                assertTrue(diagnostic.getMessage(null).contains("private"));
+                errorLines.add(diagnostic.getLineNumber());
+            }
+        }
+
+        assertEquals(Arrays.asList(4L, 5L), errorLines);
+        Files.delete(output);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void unmarshaller()
+    {
+        Order order = XMLUnmarshaller.of(Order.class).unmarshal(XMLMarshaller.of(Order.class).toString(createOrder(), Format.PRETTY));
+
+        assertEquals(2000, order.id);
+        assertEquals("\u20ac", order.getCurrencyCode());
+        assertEquals("ACTIVE & ready", order.status);
+        assertTrue(order.isUrgent());
+        assertEquals(2, order.locations.size());
+        assertEquals("USA", order.locations.get(1).name);
+        assertEquals("United States of America", order.locations.get(1).description);
+
+        // Anything not bound is ignored
+        order = new OrderXMLUnmarshaller().unmarshal("<order id=\"7\" other=\"x\"><unknown><status>X</status></unknown><status> OK </status>"
+                                                     + "<location name=\"UK\"><extra/></location><notes>Not XML</notes></order>");
+
+        assertEquals(7, order.id);
+        assertEquals("OK", order.status);
+        assertEquals(1, order.locations.size());
+        assertEquals("UK", order.locations.get(0).name);
+        assertNull(order.notes);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void attributes()
+    {
+        XML xml = XML.create("location").attribute("name", "UK").attribute("description&code", "United Kingdom").attribute("name", "GB");
+
+        assertEquals("GB", xml.attribute("name"));
+        assertEquals("United Kingdom", xml.attribute("code"));
+        assertNull(xml.attribute("never used as an attribute name"));
+        assertEquals("<location name=\"GB\" description=\"United Kingdom\" code=\"United Kingdom\"/>", xml.toString(Format.COMPACT));
+
+        // Beyond a handful of attributes they are indexed
+        XML wide = XML.create("wide");
+
+        for (int i = 0; i < 100; i++)
+        {
+            wide.attribute("a" + i, i);
+        }
+
+        for (int i = 0; i < 100; i += 2)
+        {
+            wide.attribute("a" + i, -i);
+        }
+
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals(String.valueOf(i % 2 == 0 ? -i : i), wide.attribute("a" + i));
+        }
+
+        assertNull(wide.attribute("name"));
+        assertEquals(100, XML.toMap(wide).size());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void snapshot()
+    {
+        XML xml = createXML();
+        XML demo2 = xml.children().get(1);
+        String before = xml.toString();
+
+        XML snapshot = xml.snapshot();
+        assertSame(snapshot, xml.snapshot());
+        assertSame(snapshot, snapshot.snapshot());
+
+        demo2.children().get(1).text("Canada");
+        XML nextSnapshot = xml.snapshot();
+
+        assertEquals(before, snapshot.toString());
+        assertEquals(xml.toString(), nextSnapshot.toString());
+        assertEquals("Canada", nextSnapshot.children().get(1).children().get(1).text());
+
+        // Only the changed path is copied
+        assertSame(snapshot.children().get(0), nextSnapshot.children().get(0));
+        assertSame(snapshot.children().get(1).children().get(0), nextSnapshot.children().get(1).children().get(0));
+        assertTrue(snapshot.children().get(1) != nextSnapshot.children().get(1));
+
+        assertEquals("scooby", nextSnapshot.children().get(0).attribute("id"));
+        assertEquals(xml.toMap(), nextSnapshot.toMap());
+    }
+
+    /**
+     *
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshotCannotChange()
+    {
+        createXML().snapshot().children().get(0).attribute("id", "changed");
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void concurrentAppend() throws Exception
+    {
+        final int producers = 4;
+        final int records = 1000;
+
+        XML xml = XML.create("batch").node("header", "Daily").nodeEnd();
+        final XML parent = xml.node("records").concurrent(true);
+        XML snapshot = xml.snapshot();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(producers);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++)
+        {
+            final int producer = p;
+
+            futures.add(executorService.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < records; i++)
+                    {
+                        parent.node("record").attribute("producer", producer).attribute("index", i).node("name", "Record " + i);
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future : futures)
+        {
+            future.get();
+        }
+
+        executorService.shutdown();
+
+        // Records are merged upon walking (here, taking a snapshot) and not just upon asking for children
+        XML nextSnapshot = xml.snapshot();
+        assertEquals(0, snapshot.children().get(1).children().size());
+        assertEquals(producers * records, nextSnapshot.children().get(1).children().size());
+        assertSame(snapshot.children().get(0), nextSnapshot.children().get(0));
+
+        // Ordered, so each producer's records are in the order it created them
+        int[] next = new int[producers];
+
+        for (XML record : parent.children())
+        {
+            int producer = Integer.parseInt(record.attribute("producer"));
+            assertEquals(next[producer]++, Integer.parseInt(record.attribute("index")));
+        }
+
+        parent.node("record").attribute("producer", "main");
+        assertEquals(producers * records + 1, xml.snapshot().children().get(1).children().size());
+        assertEquals(xml.toString(), xml.snapshot().toString());
+        assertTrue(xml.toString(Format.COMPACT).endsWith("<record producer=\"main\"/></records></batch>"));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void compactXML()
+    {
+        CompactXML compactXML =
+            CompactXML.create("demo").text("Root blah")
+                .node("demo1").text("Blah 1").attribute("id", "scooby")
+                    .node("address").text("Address 1").nodeEnd()
+                    .node("country").text("UK").nodeEnd()
+                    .node("empty").nodeEnd()
+                    .node("blank", "").nodeEnd()
+                    .nodeEnd()
+                .node("demo2").text("Blah 2 & more")
+                    .node("address").text("Address 2").nodeEnd()
+                    .node("country").text("USA")
+                    .xmlEnd();
+
+        for (Format format : new Format[] { Format.PRETTY, Format.COMPACT })
+        {
+            assertEquals(createStreamedXML().toString(format), compactXML.toString(format));
+        }
+
+        // Attributes added to a node after those of other nodes
+        compactXML.node("demo1").attribute("a", 1).node("demo2").attribute("b", 2).nodeEnd().attribute("c", 3).text("Changed").text("Changed again");
+        assertTrue(compactXML.toString(Format.COMPACT).endsWith("<demo1 a=\"1\" c=\"3\">Changed again<demo2 b=\"2\"/></demo1></demo>"));
+        assertEquals(11, compactXML.size());
+    }
+
+    /**
+     * An attribute set again is replaced (in the same position) by XML, and so by its streamed and compact alternatives.
+     * @throws IOException
+     */
+    @Test
+    public void replaceAttributes() throws IOException
+    {
+        XML xml = XML.create("order").attribute("id", 1).attribute("status", "NEW").attribute("id&code", 2).attribute("status", "DONE")
+                     .node("location").attribute("name", "UK").attribute("name", "USA").xmlEnd();
+
+        StringWriter writer = new StringWriter();
+        XMLStream.create(writer, Format.COMPACT, "order").attribute("id", 1).attribute("status", "NEW").attribute("id&code", 2).attribute("status", "DONE")
+                 .node("location").attribute("name", "UK").attribute("name", "USA").xmlEnd();
+
+        CompactXML compactXML = CompactXML.create("order").attribute("id", 1).attribute("status", "NEW").attribute("id&code", 2).attribute("status", "DONE")
+                                          .node("location").attribute("name", "UK").attribute("name", "USA").xmlEnd();
+
+        assertEquals("<order id=\"2\" status=\"DONE\" code=\"2\"><location name=\"USA\"/></order>", xml.toString(Format.COMPACT));
+        assertEquals(xml.toString(Format.COMPACT), writer.toString());
+        assertEquals(xml.toString(Format.COMPACT), compactXML.toString(Format.COMPACT));
+    }
+
+    /**
+     * Replacing the value of an attribute (or text) of a {@link CompactXML} reuses its slot, so repeated updates do not grow the values held.
+     */
+    @Test
+    public void replaceCompactValues()
+    {
+        CompactXML compactXML = CompactXML.create("order").text("NEW").attribute("id&code", 0).node("location").attribute("name", "UK").xmlEnd();
+        int valuesSize = compactXML.valuesSize();
+
+        for (int i = 1; i <= 100; i++)
+        {
+            compactXML.text("Update " + i).attribute("id", i).attribute("code&id", "C" + i);
+        }
+
+        assertEquals(valuesSize, compactXML.valuesSize());
+        assertEquals("<order id=\"C100\" code=\"C100\">Update 100<location name=\"UK\"/></order>", compactXML.toString(Format.COMPACT));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void writeToChannel() throws IOException
+    {
+        XML xml = createXML().node("unicode").text("caf\u00e9 \u20ac \ud83d\ude00").xmlEnd();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        // A tiny buffer to force many flushes to the channel
+        xml.writeTo(Channels.newChannel(outputStream), ByteBuffer.allocateDirect(7));
+
+        assertArrayEquals(xml.toString().getBytes(StandardCharsets.UTF_8), outputStream.toByteArray());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void writeToBuffer()
+    {
+        XML xml = createXML();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        xml.writeTo(buffer);
+
+        assertEquals(xml.toString(), new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void writeSymbolsToBuffer()
+    {
+        XML xml = XML.create("d\u00e9mo").attribute("n\u00e4me", "\u00fcber")
+                        .node("d\u00e9mo", "\u20ac")
+                        .xmlEnd();
+
+        assertSame(Symbol.of("d\u00e9mo"), Symbol.of(new String("d\u00e9mo")));
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        xml.writeTo(buffer);
+
+        assertEquals(xml.toString(), new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Names are only kept while used, so parsing XML of ever different names does not fill the symbol table.
+     * @throws InterruptedException
+     */
+    @Test
+    public void dropSymbols() throws InterruptedException
+    {
+        String name = "name" + System.nanoTime();
+        XML xml = XML.parse("<root><" + name + "/></root>");
+        WeakReference<Symbol> symbol = new WeakReference<>(Symbol.find(name));
+
+        assertSame(symbol.get(), Symbol.of(xml.children().get(0).name()));
+
+        xml = null;
+
+        for (int i = 0; i < 100 && symbol.get() != null; i++)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertNull(symbol.get());
+        assertNull(Symbol.find(name));
+        assertSame(Symbol.of(name), Symbol.find(new String(name)));
+    }
+
+    /**
+     * Looking up a name never used matches nothing, without adding the name to the symbol table.
+     */
+    @Test
+    public void getUnknownName()
+    {
+        String name = "name" + System.nanoTime();
+        XML xml = createXML();
+
+        assertEquals("", xml.get("/demo/" + name + "/@id"));
+        assertEquals("", xml.get("//" + name));
+        assertNull(Symbol.find(name));
+        assertEquals("Blah 2", xml.get(new String("/demo/demo2/text()")));
+        assertEquals("scooby", xml.get("//demo1/@id"));
+    }
+
+    /**
+     *
+     */
+    @Test(expected = BufferOverflowException.class)
+    public void writeToBufferTooSmall()
+    {
+        createXML().writeTo(ByteBuffer.allocate(16));
+    }
+
     /**
      *
      */
@@ -83,6 +795,50 @@ public class XMLTest
         }
     }
 
+    /**
+     *
+     * @throws IOException
+     */
+    @Test
+    public void toMapFromPath() throws IOException
+    {
+        XML xml = createXML();
+        xml.children().get(1).node("currency", "\u20ac \u00a3");
+        Path path = Files.createTempFile("xml", ".xml");
+
+        try
+        {
+            Files.write(path, xml.toString().getBytes(StandardCharsets.UTF_8));
+
+            assertEquals(xml.toMap(), XML.toMap(path));
+            assertEquals(xml.toString(), XML.parse(path).toString());
+
+            // Windows smaller than a (multi-byte) character
+            try (MappedInputStream mappedInputStream = new MappedInputStream(path, 7))
+            {
+                assertEquals(xml.toMap(), XML.toMap(mappedInputStream));
+            }
+
+            try (MappedInputStream mappedInputStream = new MappedInputStream(path, 7);
+                 ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream())
+            {
+                for (int b; (b = mappedInputStream.read()) != -1;)
+                {
+                    byteArrayOutputStream.write(b);
+                }
+
+                assertArrayEquals(Files.readAllBytes(path), byteArrayOutputStream.toByteArray());
+            }
+        }
+        finally
+        {
+            Files.delete(path);
+        }
+
+        assertTrue(XML.toMap(path).isEmpty());
+        assertNull(XML.parse(path));
+    }
+
     /**
      *
      */
@@ -101,6 +857,286 @@ public class XMLTest
         System.out.printf("%nParsing and xpath look up in %s milliseconds%n", stop - start);
     }
 
+    /**
+     *
+     */
+    @Test
+    public void parseTree()
+    {
+        XML xml = createXML();
+        XML parsed = XML.parse(xml.toString());
+
+        assertEquals(xml.toString(), parsed.toString());
+        assertEquals(xml.toString(Format.COMPACT), XML.parse(xml.toString(Format.COMPACT)).toString(Format.COMPACT));
+        assertEquals(xml.toMap(), parsed.toMap());
+
+        // Escaped text, empty and blank nodes
+        XML streamed = createStreamedXML();
+        assertEquals(XML.create("x").node("blank").toString(), XML.parse("<blank>  </blank>").toString());
+        assertEquals("Blah 2 & more", XML.parse(streamed.toString()).children().get(1).text());
+
+        XML demo2 = parsed.children().get(1);
+        assertEquals("demo2", demo2.name());
+        assertEquals("Blah 2", demo2.text());
+        assertEquals("USA", demo2.children().get(1).text());
+        assertEquals("scooby", parsed.children().get(0).attribute("id"));
+
+        // The parsed XML can be changed as any other, where the nodes looked up are those changed
+        assertEquals("scooby", parsed.get("//demo1/@id"));
+        parsed.children().get(0).attribute("id", "shaggy");
+        assertEquals("shaggy", parsed.get("//demo1/@id"));
+
+        assertNull(XML.parse("<unclosed>"));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void getValues()
+    {
+        XML xml = XML.create("order").attribute("note", "A&B").node("status", "ACTIVE").nodeEnd().node("status", "DONE").nodeEnd()
+                     .node("location").attribute("name", "UK").attribute("description", "\"<United Kingdom>\"").nodeEnd()
+                     .node("locations").node("location").attribute("name", "USA").nodeEnd().nodeEnd().xmlEnd();
+        XMLIndex index = XMLIndex.parse(xml.toString().getBytes(StandardCharsets.UTF_8));
+
+        // The values themselves, regardless of how the XML is written
+        assertEquals("ACTIVE", xml.get("//status/text()"));
+        assertEquals("ACTIVE", xml.get("//order/status"));
+        assertEquals("A&B", xml.get("//order/@note"));
+        assertEquals("\"<United Kingdom>\"", xml.get("//location/@description|NAME"));
+        assertEquals("<location name=\"UK\" description=\"&quot;&lt;United Kingdom>&quot;\"/>", xml.get("//location/@"));
+        assertEquals("", xml.get("//missing/text()"));
+
+        for (String xpath : new String[] { "//status/text()", "//order/status", "//order/@note", "//location/@description|name", "//location/@description|NAME", "//order/location/@name", "//locations/location/@name",
+                                           "//order//location/@name", "//*/location/@description", "//*/*/location/@name", "//location/text()", "//order/@missing", "//missing" })
+        {
+            assertEquals(index.get(xpath), xml.get(xpath));
+        }
+
+        final List<String> names = new ArrayList<>();
+
+        assertTrue(xml.get("//order//location/@", new AttributeCallback()
+        {
+            /**
+             *
+             * @see com.kissthinker.xml.XML.AttributeCallback#got(java.util.Map)
+             */
+            @Override
+            public void got(Map<String, String> attributeNameValuePairs)
+            {
+                names.add(attributeNameValuePairs.toString());
+            }
+        }));
+
+        assertEquals("[{name=UK, description=\"<United Kingdom>\"}, {name=USA}]", names.toString());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void pullParser()
+    {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                        + "<order id=\"2000\" note='Say \"hi\" &amp; &#x20ac;'>\r\n"
+                        + "    <status>ACTIVE &lt;now&gt;</status><!-- comment -->\n"
+                        + "    <empty/><data><![CDATA[<&>]]></data>\n"
+                        + "</order>").getBytes(StandardCharsets.UTF_8);
+
+        XMLPullParser parser = new XMLPullParser(bytes);
+
+        assertEquals(XMLPullParser.START_ELEMENT, parser.next());
+        assertEquals("order", parser.name());
+        assertEquals(1, parser.depth());
+        assertEquals(2, parser.attributeCount());
+        assertEquals("id", parser.attributeName(0));
+        assertEquals("2000", new String(bytes, parser.attributeValueOffset(0), parser.attributeValueLength(0), StandardCharsets.UTF_8));
+        assertEquals("Say \"hi\" & \u20ac", parser.attributeValue(1));
+
+        assertEquals(XMLPullParser.TEXT, parser.next());
+        assertTrue(parser.whitespace());
+
+        assertEquals(XMLPullParser.START_ELEMENT, parser.next());
+        assertSame(parser.name(), parser.name());
+        assertEquals(0, parser.attributeCount());
+        assertEquals(XMLPullParser.TEXT, parser.next());
+        assertEquals("ACTIVE <now>", parser.text());
+        assertEquals(XMLPullParser.END_ELEMENT, parser.next());
+        assertEquals("status", parser.name());
+
+        parser.next();
+        assertEquals(XMLPullParser.START_ELEMENT, parser.next());
+        assertEquals(XMLPullParser.END_ELEMENT, parser.next());
+        assertEquals("empty", parser.name());
+
+        parser.next();
+        parser.next();
+        assertEquals("<&>", parser.text());
+
+        while (parser.next() != XMLPullParser.END_DOCUMENT)
+        {
+            assertTrue(parser.event() != XMLPullParser.START_ELEMENT);
+        }
+
+        assertEquals(0, parser.depth());
+        assertEquals(XML.toMap(new String(bytes, StandardCharsets.UTF_8)), XML.toMap(new XMLPullParser(bytes)));
+
+        // Events given to the same handlers as the SAX parser
+        XML xml = createStreamedXML();
+        bytes = xml.toString().getBytes(StandardCharsets.UTF_8);
+        assertEquals(xml.toMap(), XML.toMap(new XMLPullParser(ByteBuffer.wrap(bytes))));
+        assertEquals(XML.parse(xml.toString()).toString(), XML.parse(new XMLPullParser(bytes)).toString());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        assertEquals(xml.toMap(), XML.toMap(new XMLPullParser(buffer)));
+
+        // Text longer than the chars a parser starts with
+        String text = new String(new char[1000]).replace('\0', '\u00e9');
+        parser = new XMLPullParser(("<text value=\"" + text + "\">" + text + "</text>").getBytes(StandardCharsets.UTF_8));
+        parser.next();
+        assertEquals(text, parser.attributeValue(0));
+        parser.next();
+        assertEquals(text, parser.text());
+
+        for (String malformed : new String[] { "<a><b></a>", "<a>", "<a b=c/>", "text", "<a>&unknown;</a>", "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a/>" })
+        {
+            assertTrue(XML.toMap(new XMLPullParser(malformed.getBytes(StandardCharsets.UTF_8))).isEmpty());
+            assertNull(XML.parse(new XMLPullParser(malformed.getBytes(StandardCharsets.UTF_8))));
+        }
+    }
+
+    /**
+     * XML that SAX rejects, so that the pull parser must reject it too (even when the offending text or attribute is never read).
+     */
+    @Test
+    public void pullParserNotWellFormed()
+    {
+        for (String malformed : new String[] { "<a><x>1</x></a><b/>", "<a/><b/>", "", "<a b=\"1\" b=\"2\"/>", "<a b=\"<\"/>",
+                                               "<a>&#0;</a>", "<a>&#xD800;</a>", "<a b=\"&#x1;\"/>", "<a>&#xFFFE;</a>" })
+        {
+            assertNull(XML.parse(malformed));
+            assertTrue(XML.toMap(new XMLPullParser(malformed.getBytes(StandardCharsets.UTF_8))).isEmpty());
+            assertNull(XML.parse(new XMLPullParser(malformed.getBytes(StandardCharsets.UTF_8))));
+            assertNull(XMLIndex.parse(malformed.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        // Allowed characters referenced either side of those that are not
+        assertEquals("x\t\ud7ff\ue000\ud800\udc00x", XML.parse(new XMLPullParser("<a>x&#9;&#xD7FF;&#xE000;&#x10000;x</a>".getBytes(StandardCharsets.UTF_8))).text());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void parseLazily()
+    {
+        XML xml = XML.parse(Thread.currentThread().getContextClassLoader().getResourceAsStream(path(getClass(), "/order.xml")));
+        byte[] bytes = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+        XML order = XML.parse(new XMLPullParser(bytes), 1);
+        assertEquals("2000", order.attribute("id"));
+
+        XML author = order.children().get(4);
+        assertEquals("The Author", author.attribute("name"));
+
+        XML locations = order.children().get(8);
+        assertEquals("locations", locations.name());
+        assertEquals("USA", locations.children().get(1).attribute("name"));
+        assertEquals("scooby", order.children().get(1).text());
+        assertEquals(xml.toString(), order.toString());
+        assertEquals(xml.toMap(), XML.parse(new XMLPullParser(bytes), 0).toMap());
+
+        // Nodes added after the deferred children
+        order = XML.parse(new XMLPullParser(bytes), 0);
+        order.node("added");
+        assertEquals("added", order.children().get(9).name());
+
+        assertNull(XML.parse(new XMLPullParser("<order><author>".getBytes(StandardCharsets.UTF_8)), 1));
+    }
+
+    /**
+     *
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void parseLazilyNotWellFormed()
+    {
+        // Only checked upon navigating the deferred content
+        XML order = XML.parse(new XMLPullParser("<order><author name='The Author'><x>1</x><a></b></author></order>".getBytes(StandardCharsets.UTF_8)), 1);
+        XML author = order.children().get(0);
+        assertEquals("The Author", author.attribute("name"));
+
+        try
+        {
+            author.children();
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertTrue(e.getMessage().startsWith("End tag does not match"));
+        }
+
+        // Still failing (rather than giving the nodes parsed before the failure) upon navigating again
+        author.children();
+    }
+
+    /**
+     *
+     * @throws IOException
+     */
+    @Test
+    public void index() throws IOException
+    {
+        XML xml = XML.parse(Thread.currentThread().getContextClassLoader().getResourceAsStream(path(getClass(), "/order.xml")));
+        XMLIndex index = XMLIndex.parse(xml.toString().getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("The Author", index.get("//author/@name|NAME"));
+        assertEquals("The Illustrator", index.get("//illustrator/@name|NAME"));
+        assertEquals("20120101", index.get("//publication/@publicationDate|date"));
+        assertEquals("scooby", index.get("//order/userName/text()"));
+        assertEquals("United Kingdom", index.get("//*/location/@description"));
+        assertEquals("", index.get("//order/location/@name"));
+        assertEquals("UK", index.get("//order//location/@name"));
+        assertEquals(new ArrayList<>(xml.toMap().entrySet()), new ArrayList<>(index.toMap().entrySet()));
+
+        final List<String> names = new ArrayList<>();
+
+        assertTrue(index.get("//locations/location/@", new AttributeCallback()
+        {
+            /**
+             *
+             * @see com.kissthinker.xml.XML.AttributeCallback#got(java.util.Map)
+             */
+            @Override
+            public void got(Map<String, String> attributeNameValuePairs)
+            {
+                names.add(attributeNameValuePairs.get("name"));
+            }
+        }));
+
+        assertEquals("[UK, USA]", names.toString());
+
+        assertEquals(XMLIndex.ELEMENT, index.type(0));
+        assertEquals("order", index.string(0));
+        assertEquals(XMLIndex.ATTRIBUTE_NAME, index.type(1));
+        assertEquals(index.size(), index.end(0));
+
+        Path path = Files.createTempFile("xml", ".xml");
+
+        try
+        {
+            Files.write(path, xml.toString().getBytes(StandardCharsets.UTF_8));
+            assertEquals("The Author", XMLIndex.parse(path).get("//author/@name"));
+        }
+        finally
+        {
+            Files.delete(path);
+        }
+
+        assertNull(XMLIndex.parse(path));
+        assertNull(XMLIndex.parse("<a><b></a>".getBytes(StandardCharsets.UTF_8)));
+    }
+
     /**
      *
      */
@@ -131,6 +1167,41 @@ public class XMLTest
         System.out.printf("%nList parsing and xpath look up in %s milliseconds%n", stop - start);
     }
 
+    /**
+     *
+     * @return Order
+     */
+    private Order createOrder()
+    {
+        Order order = new Order();
+        order.id = 2000;
+        order.setCurrencyCode("\u20ac");
+        order.status = "ACTIVE & ready";
+        order.setUrgent(true);
+        order.locations.add(new Order.Location("UK", "United Kingdom"));
+        order.locations.add(new Order.Location("USA", "United States of America"));
+        return order;
+    }
+
+    /**
+     * The XML equivalent of that streamed by {@link #stream()} (and built by {@link #compactXML()}).
+     * @return XML
+     */
+    private XML createStreamedXML()
+    {
+        return XML.create("demo").text("Root blah")
+                        .node("demo1").text("Blah 1").attribute("id", "scooby")
+                            .node("address").text("Address 1").nodeEnd()
+                            .node("country").text("UK").nodeEnd()
+                            .node("empty").nodeEnd()
+                            .node("blank", "").nodeEnd()
+                            .nodeEnd()
+                        .node("demo2").text("Blah 2 & more")
+                            .node("address").text("Address 2").nodeEnd()
+                            .node("country").text("USA")
+                            .xmlEnd();
+    }
+
     /**
      *
      * @return XML